@@ -0,0 +1,76 @@
+package com.nukkitx.network.raknet;
+
+import org.itxtech.nemisys.Server;
+
+/**
+ * Decides how much a {@link RakNetSession} may send and when unacknowledged datagrams are resent.
+ * Only used from the event loop of the session.
+ */
+public interface CongestionController {
+
+    /**
+     * Create the congestion controller selected by raknet-congestion-control in server.properties
+     *
+     * @param name controller name
+     * @param mtu MTU of the session
+     * @return congestion controller
+     */
+    static CongestionController create(String name, int mtu) {
+        switch (name) {
+            case "cubic":
+                return new CubicCongestionController(mtu);
+            case "sliding-window":
+                return new RakNetSlidingWindow(mtu);
+            default:
+                Server.getInstance().getLogger().warning("Unknown raknet-congestion-control " + name + ", using sliding-window");
+                return new RakNetSlidingWindow(mtu);
+        }
+    }
+
+    /**
+     * @param unAckedBytes bytes sent but not acknowledged yet
+     * @return bytes which may be resent in this tick
+     */
+    int getRetransmissionBandwidth(int unAckedBytes);
+
+    /**
+     * @param unAckedBytes bytes sent but not acknowledged yet
+     * @return bytes of new datagrams which may be sent in this tick
+     */
+    int getTransmissionBandwidth(int unAckedBytes);
+
+    void onPacketReceived(long curTime);
+
+    /**
+     * Called once per tick in which datagrams timed out and were resent
+     *
+     * @param curTime current time in milliseconds
+     * @param curSequenceIndex sequence index of the next datagram the session sends
+     */
+    void onResend(long curTime, long curSequenceIndex);
+
+    /**
+     * Called once per received NAK
+     *
+     * @param curTime current time in milliseconds
+     */
+    void onNak(long curTime);
+
+    /**
+     * Called for every acknowledged datagram
+     *
+     * @param curTime current time in milliseconds
+     * @param rtt round trip time of the datagram in milliseconds
+     * @param sequenceIndex sequence index of the datagram
+     * @param curSequenceIndex current read sequence index of the session
+     */
+    void onAck(long curTime, long rtt, long sequenceIndex, long curSequenceIndex);
+
+    void onSendAck();
+
+    long getRtoForRetransmission();
+
+    double getRTT();
+
+    boolean shouldSendAcks(long curTime);
+}
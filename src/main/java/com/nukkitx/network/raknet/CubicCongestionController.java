@@ -0,0 +1,159 @@
+package com.nukkitx.network.raknet;
+
+import static com.nukkitx.network.raknet.RakNetConstants.*;
+
+/**
+ * CUBIC congestion control (RFC 8312). A loss shrinks the window by a factor instead of resetting it to one MTU, and
+ * the window grows back along a cubic curve towards the size it had before the loss, which keeps throughput up on
+ * lossy mobile networks.
+ */
+public class CubicCongestionController implements CongestionController {
+
+    private static final double C = 0.4D;
+    private static final double BETA = 0.7D;
+
+    private final int mtu;
+    private double cwnd;
+    private double ssThresh;
+    /**
+     * Window before the last reduction in segments
+     */
+    private double wMax;
+    /**
+     * Time to grow back to wMax in seconds
+     */
+    private double k;
+    private long epochStart = -1;
+    private long lastReduction;
+    private double estimatedRTT = -1;
+    private double lastRTT = -1;
+    private double deviationRTT = -1;
+    private long oldestUnsentAck;
+
+    public CubicCongestionController(int mtu) {
+        this.mtu = mtu;
+        this.cwnd = mtu;
+    }
+
+    @Override
+    public int getRetransmissionBandwidth(int unAckedBytes) {
+        return unAckedBytes;
+    }
+
+    @Override
+    public int getTransmissionBandwidth(int unAckedBytes) {
+        if (unAckedBytes <= this.cwnd) {
+            return (int) (this.cwnd - unAckedBytes);
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public void onPacketReceived(long curTime) {
+        if (this.oldestUnsentAck == 0) {
+            this.oldestUnsentAck = curTime;
+        }
+    }
+
+    @Override
+    public void onResend(long curTime, long curSequenceIndex) {
+        this.onLoss(curTime);
+    }
+
+    @Override
+    public void onNak(long curTime) {
+        this.onLoss(curTime);
+    }
+
+    private void onLoss(long curTime) {
+        // Losses within the same round trip belong to the same congestion event
+        if (this.estimatedRTT != -1 && curTime - this.lastReduction < this.estimatedRTT) {
+            return;
+        }
+        this.lastReduction = curTime;
+
+        double segments = this.cwnd / this.mtu;
+        if (segments < this.wMax) {
+            // Fast convergence, release bandwidth to newer flows
+            this.wMax = segments * (1.0D + BETA) / 2.0D;
+        } else {
+            this.wMax = segments;
+        }
+        this.cwnd = Math.max(this.cwnd * BETA, this.mtu);
+        this.ssThresh = this.cwnd;
+        this.epochStart = -1;
+    }
+
+    @Override
+    public void onAck(long curTime, long rtt, long sequenceIndex, long curSequenceIndex) {
+        this.lastRTT = rtt;
+
+        if (this.estimatedRTT == -1) {
+            this.estimatedRTT = rtt;
+            this.deviationRTT = rtt;
+        } else {
+            double d = 0.05D;
+            double difference = rtt - this.estimatedRTT;
+            this.estimatedRTT += d * difference;
+            this.deviationRTT += d * (Math.abs(difference) - this.deviationRTT);
+        }
+
+        if (this.cwnd < this.ssThresh || this.ssThresh == 0) {
+            this.cwnd += this.mtu;
+            return;
+        }
+
+        double segments = this.cwnd / this.mtu;
+        if (this.epochStart == -1) {
+            this.epochStart = curTime;
+            if (segments < this.wMax) {
+                this.k = Math.cbrt((this.wMax - segments) / C);
+            } else {
+                this.k = 0;
+                this.wMax = segments;
+            }
+        }
+
+        double t = (curTime - this.epochStart + this.estimatedRTT) / 1000.0D;
+        double target = C * (t - this.k) * (t - this.k) * (t - this.k) + this.wMax;
+
+        // Never grow slower than Reno would in the same time
+        double rttSeconds = Math.max(this.estimatedRTT, 1.0D) / 1000.0D;
+        double reno = this.wMax * BETA + 3.0D * (1.0D - BETA) / (1.0D + BETA) * ((curTime - this.epochStart) / 1000.0D) / rttSeconds;
+        if (reno > target) {
+            target = reno;
+        }
+
+        if (target > segments) {
+            this.cwnd += Math.min((target - segments) / segments, 1.0D) * this.mtu;
+        } else {
+            this.cwnd += this.mtu / (100.0D * segments);
+        }
+    }
+
+    @Override
+    public void onSendAck() {
+        this.oldestUnsentAck = 0;
+    }
+
+    @Override
+    public long getRtoForRetransmission() {
+        if (this.estimatedRTT == -1) {
+            return CC_MAXIMUM_THRESHOLD;
+        }
+
+        long threshold = (long) ((2.0D * this.estimatedRTT + 4.0D * this.deviationRTT) + CC_ADDITIONAL_VARIANCE);
+        return Math.min(threshold, CC_MAXIMUM_THRESHOLD);
+    }
+
+    @Override
+    public double getRTT() {
+        return this.estimatedRTT;
+    }
+
+    @Override
+    public boolean shouldSendAcks(long curTime) {
+        return this.lastRTT == -1 || curTime >= this.oldestUnsentAck + CC_SYN;
+    }
+}
@@ -1,15 +1,34 @@
 package com.nukkitx.network.raknet;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
 import io.netty.util.ReferenceCounted;
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.Setter;
+import lombok.ToString;
 
 @Data
 @Setter(AccessLevel.NONE)
 public class EncapsulatedPacket implements ReferenceCounted {
 
+    private static final Recycler<EncapsulatedPacket> RECYCLER = new Recycler<EncapsulatedPacket>() {
+        @Override
+        protected EncapsulatedPacket newObject(Handle<EncapsulatedPacket> handle) {
+            return new EncapsulatedPacket(handle);
+        }
+    };
+
+    /**
+     * Null for packets which are not pooled
+     */
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final Recycler.Handle<EncapsulatedPacket> handle;
+
     RakNetReliability reliability;
     int reliabilityIndex;
     int sequenceIndex;
@@ -22,6 +41,39 @@ public class EncapsulatedPacket implements ReferenceCounted {
     ByteBuf buffer;
     boolean needsBAS;
 
+    public EncapsulatedPacket() {
+        this(null);
+    }
+
+    private EncapsulatedPacket(Recycler.Handle<EncapsulatedPacket> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Get a pooled packet, it is returned to the pool by the datagram it was sent in
+     */
+    static EncapsulatedPacket newInstance() {
+        return RECYCLER.get();
+    }
+
+    void recycle() {
+        if (this.handle == null) {
+            return;
+        }
+        this.reliability = null;
+        this.reliabilityIndex = 0;
+        this.sequenceIndex = 0;
+        this.orderingIndex = 0;
+        this.orderingChannel = 0;
+        this.split = false;
+        this.partCount = 0;
+        this.partId = 0;
+        this.partIndex = 0;
+        this.buffer = null;
+        this.needsBAS = false;
+        this.handle.recycle(this);
+    }
+
     public void encode(ByteBuf buf) {
         int flags = reliability.ordinal() << 5;
         if (split) {
@@ -102,6 +154,24 @@ public class EncapsulatedPacket implements ReferenceCounted {
         return packet;
     }
 
+    /**
+     * @return packet with the same header as this one and the given buffer
+     */
+    public EncapsulatedPacket withBuffer(ByteBuf buffer) {
+        EncapsulatedPacket packet = new EncapsulatedPacket();
+        packet.reliability = this.reliability;
+        packet.reliabilityIndex = this.reliabilityIndex;
+        packet.sequenceIndex = this.sequenceIndex;
+        packet.orderingIndex = this.orderingIndex;
+        packet.orderingChannel = this.orderingChannel;
+        packet.split = this.split;
+        packet.partCount = this.partCount;
+        packet.partId = this.partId;
+        packet.partIndex = this.partIndex;
+        packet.buffer = buffer;
+        return packet;
+    }
+
     @Override
     public int refCnt() {
         return buffer.refCnt();
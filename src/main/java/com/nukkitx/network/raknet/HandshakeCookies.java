@@ -0,0 +1,55 @@
+package com.nukkitx.network.raknet;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+
+/**
+ * Stateless cookies for the open connection handshake, similar to TCP SYN cookies. A cookie is a keyed hash of the
+ * client address, its RakNet protocol version and the current time window, so only a client which received the reply
+ * at its address can echo it back. The protocol version is carried in the low byte of the cookie.
+ */
+final class HandshakeCookies {
+
+    /**
+     * A cookie is accepted in the time window it was generated in and the one after it
+     */
+    private static final long WINDOW_MILLIS = 10000;
+
+    private final HashFunction hashFunction;
+
+    HandshakeCookies() {
+        SecureRandom random = new SecureRandom();
+        this.hashFunction = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    int generate(InetSocketAddress address, int protocolVersion) {
+        return this.cookie(address, protocolVersion & 0xff, System.currentTimeMillis() / WINDOW_MILLIS);
+    }
+
+    /**
+     * @param address address the cookie was received from
+     * @param cookie cookie
+     * @return RakNet protocol version of the client or -1 if the cookie is not valid
+     */
+    int verify(InetSocketAddress address, int cookie) {
+        int protocolVersion = cookie & 0xff;
+        long window = System.currentTimeMillis() / WINDOW_MILLIS;
+        if (this.cookie(address, protocolVersion, window) == cookie || this.cookie(address, protocolVersion, window - 1) == cookie) {
+            return protocolVersion;
+        }
+        return -1;
+    }
+
+    private int cookie(InetSocketAddress address, int protocolVersion, long window) {
+        Hasher hasher = this.hashFunction.newHasher()
+                .putBytes(address.getAddress().getAddress())
+                .putShort((short) address.getPort())
+                .putByte((byte) protocolVersion)
+                .putLong(window);
+        return (hasher.hash().asInt() & 0xffffff00) | protocolVersion;
+    }
+}
@@ -0,0 +1,101 @@
+package com.nukkitx.network.raknet;
+
+import java.util.ArrayDeque;
+
+/**
+ * One FIFO queue per {@link RakNetPriority}, drained by stride scheduling. Every packet (or split series) sent at
+ * priority level p moves that queue forward by the same weight step the old heap used, (2^p) * (p + 1) + p, and the
+ * queue which is furthest behind is drained next. Parts of a split series are always sent back to back.
+ * Not thread safe, only used from the event loop of the session.
+ */
+final class OutgoingPacketQueue {
+
+    private static final int LEVELS = RakNetPriority.values().length;
+    private static final long[] STRIDES = new long[LEVELS];
+
+    static {
+        for (int priorityLevel = 0; priorityLevel < LEVELS; priorityLevel++) {
+            STRIDES[priorityLevel] = (1L << priorityLevel) * (priorityLevel + 1) + priorityLevel;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<EncapsulatedPacket>[] queues = new ArrayDeque[LEVELS];
+    private final long[] passes = new long[LEVELS];
+    /**
+     * Pass of the queue drained last, queues which were idle start from here
+     */
+    private long virtualTime;
+    /**
+     * Queue the next packet is taken from, -1 if it has to be picked again
+     */
+    private int current = -1;
+    private int size;
+
+    OutgoingPacketQueue() {
+        for (int priorityLevel = 0; priorityLevel < LEVELS; priorityLevel++) {
+            this.queues[priorityLevel] = new ArrayDeque<>(8);
+        }
+    }
+
+    void add(RakNetPriority priority, EncapsulatedPacket[] packets) {
+        int priorityLevel = priority.ordinal();
+        ArrayDeque<EncapsulatedPacket> queue = this.queues[priorityLevel];
+        if (queue.isEmpty() && this.passes[priorityLevel] < this.virtualTime) {
+            this.passes[priorityLevel] = this.virtualTime;
+        }
+        for (EncapsulatedPacket packet : packets) {
+            queue.add(packet);
+        }
+        this.size += packets.length;
+    }
+
+    EncapsulatedPacket peek() {
+        if (this.size == 0) {
+            return null;
+        }
+
+        if (this.current == -1) {
+            int next = -1;
+            for (int priorityLevel = 0; priorityLevel < LEVELS; priorityLevel++) {
+                if (!this.queues[priorityLevel].isEmpty() && (next == -1 || this.passes[priorityLevel] < this.passes[next])) {
+                    next = priorityLevel;
+                }
+            }
+            this.current = next;
+        }
+        return this.queues[this.current].peek();
+    }
+
+    void remove() {
+        if (this.peek() == null) {
+            return;
+        }
+
+        int priorityLevel = this.current;
+        EncapsulatedPacket packet = this.queues[priorityLevel].poll();
+        this.size--;
+        if (!packet.split || packet.partIndex == packet.partCount - 1) {
+            // Series complete, let the other queues catch up
+            this.virtualTime = this.passes[priorityLevel];
+            this.passes[priorityLevel] += STRIDES[priorityLevel];
+            this.current = -1;
+        }
+    }
+
+    EncapsulatedPacket poll() {
+        EncapsulatedPacket packet = this.peek();
+        if (packet != null) {
+            this.remove();
+        }
+        return packet;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
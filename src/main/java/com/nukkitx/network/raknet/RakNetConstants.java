@@ -13,6 +13,62 @@ public class RakNetConstants {
     public static final short MINIMUM_MTU_SIZE = (short) Server.getInstance().getPropertyInt("min-mtu", 576);
     public static final short MAXIMUM_MTU_SIZE = (short) Server.getInstance().getPropertyInt("max-mtu", 1400);
 
+    /**
+     * Datagrams read with one recvmmsg call on the epoll transport, 1 reads them one by one.
+     */
+    public static final int RECEIVE_BATCH_SIZE = Math.max(Server.getInstance().getPropertyInt("raknet-receive-batch-size", 32), 1);
+    /**
+     * Largest datagram read with recvmmsg, larger ones are truncated.
+     */
+    public static final int RECEIVE_DATAGRAM_SIZE = Math.max(Server.getInstance().getPropertyInt("raknet-receive-datagram-size", 1500), MAXIMUM_MTU_SIZE);
+    /**
+     * Let the kernel coalesce datagrams of the same flow (UDP_GRO, Linux 5.0+).
+     */
+    public static final boolean UDP_GRO = Server.getInstance().getPropertyBoolean("raknet-udp-gro", false);
+    /**
+     * Send bursts of equally sized datagrams with one segmented send (UDP_SEGMENT, Linux 4.18+) when supported.
+     */
+    public static final boolean UDP_GSO = Server.getInstance().getPropertyBoolean("raknet-udp-gso", true);
+
+    /**
+     * Only create sessions after the client echoed a stateless cookie from the first open connection reply.
+     */
+    public static final boolean HANDSHAKE_COOKIES = Server.getInstance().getPropertyBoolean("raknet-handshake-cookies", false);
+
+    /**
+     * Number of token buckets of each rate limiter, addresses beyond it take over the least recently used bucket.
+     */
+    public static final int RATE_LIMIT_SLOTS = 65536;
+    /**
+     * Unconnected pings per second from one address, 0 uses the batch-limit.
+     */
+    public static final int PING_RATE = orBatchLimit(Server.getInstance().getPropertyInt("raknet-ping-rate", 0));
+    /**
+     * Unconnected pings one address may send at once, 0 uses the batch-limit.
+     */
+    public static final int PING_BURST = orBatchLimit(Server.getInstance().getPropertyInt("raknet-ping-burst", 0));
+    /**
+     * Open connection requests and other packets per second from one address without a session, 0 uses the batch-limit.
+     */
+    public static final int CONNECT_RATE = orBatchLimit(Server.getInstance().getPropertyInt("raknet-connect-rate", 0));
+    /**
+     * Packets without a session one address may send at once, 0 uses the batch-limit.
+     */
+    public static final int CONNECT_BURST = orBatchLimit(Server.getInstance().getPropertyInt("raknet-connect-burst", 0));
+    /**
+     * Datagrams per second of one session, 0 uses the batch-limit.
+     */
+    public static final int DATAGRAM_RATE = orBatchLimit(Server.getInstance().getPropertyInt("raknet-datagram-rate", 0));
+    /**
+     * Datagrams one session may send at once, 0 uses the batch-limit.
+     */
+    public static final int DATAGRAM_BURST = orBatchLimit(Server.getInstance().getPropertyInt("raknet-datagram-burst", 0));
+
+    /**
+     * Track pooled datagrams with the Netty leak detector, sampled according to io.netty.leakDetection.level.
+     */
+    public static final boolean LEAK_DETECTION = Server.getInstance().getPropertyBoolean("raknet-leak-detection", false);
+
     /**
      * Maximum amount of ordering channels as defined in vanilla RakNet.
      */
@@ -89,12 +145,20 @@ public class RakNetConstants {
     public static final long CC_MAXIMUM_THRESHOLD = 2000;
     public static final long CC_ADDITIONAL_VARIANCE = 30;
     public static final long CC_SYN = 10;
+    /**
+     * Congestion controller of new sessions, sliding-window or cubic.
+     */
+    public static final String CONGESTION_CONTROL = Server.getInstance().getPropertyString("raknet-congestion-control", "sliding-window");
 
     public static final InetSocketAddress LOOPBACK_V4 = new InetSocketAddress(Inet4Address.getLoopbackAddress(), 19132);
     public static final InetSocketAddress LOOPBACK_V6 = new InetSocketAddress(Inet6Address.getLoopbackAddress(), 19132);
     public static final InetSocketAddress[] LOCAL_IP_ADDRESSES_V4 = new InetSocketAddress[20];
     public static final InetSocketAddress[] LOCAL_IP_ADDRESSES_V6 = new InetSocketAddress[20];
 
+    private static int orBatchLimit(int value) {
+        return value > 0 ? value : Server.batchLimit;
+    }
+
     static {
         LOCAL_IP_ADDRESSES_V4[0] = LOOPBACK_V4;
         LOCAL_IP_ADDRESSES_V6[0] = LOOPBACK_V6;
@@ -1,9 +1,18 @@
 package com.nukkitx.network.raknet;
 
+import com.nukkitx.network.util.Preconditions;
 import io.netty.buffer.ByteBuf;
 import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.Recycler;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import io.netty.util.ResourceLeakTracker;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 
 import java.util.ArrayList;
@@ -16,11 +25,61 @@ import static com.nukkitx.network.raknet.RakNetConstants.*;
 @ToString()
 public class RakNetDatagram extends AbstractReferenceCounted {
 
+    private static final Recycler<RakNetDatagram> RECYCLER = new Recycler<RakNetDatagram>() {
+        @Override
+        protected RakNetDatagram newObject(Handle<RakNetDatagram> handle) {
+            return new RakNetDatagram(handle);
+        }
+    };
+    private static final ResourceLeakDetector<RakNetDatagram> LEAK_DETECTOR = LEAK_DETECTION ?
+            ResourceLeakDetectorFactory.instance().newResourceLeakDetector(RakNetDatagram.class) : null;
+
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final Recycler.Handle<RakNetDatagram> handle;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private ResourceLeakTracker<RakNetDatagram> leak;
+
     final List<EncapsulatedPacket> packets = new ArrayList<>();
     byte flags = FLAG_VALID;
-    final long sendTime;
+    long sendTime;
     long nextSend;
     int sequenceIndex = -1;
+    /*
+        Links of the retransmission wheel
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    RakNetDatagram wheelPrev;
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    RakNetDatagram wheelNext;
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    int wheelSlot = -1;
+
+    private RakNetDatagram(Recycler.Handle<RakNetDatagram> handle) {
+        this.handle = handle;
+        this.setRefCnt(0); // Counted from newInstance
+    }
+
+    static RakNetDatagram newInstance(long sendTime) {
+        RakNetDatagram datagram = RECYCLER.get();
+        if (LEAK_DETECTOR != null && datagram.refCnt() != 0) {
+            // Pooled datagrams are at 0, something retained it after it was recycled
+            throw new IllegalReferenceCountException(datagram.refCnt());
+        }
+        datagram.setRefCnt(1);
+        datagram.sendTime = sendTime;
+        if (LEAK_DETECTOR != null) {
+            datagram.leak = LEAK_DETECTOR.track(datagram);
+        }
+        return datagram;
+    }
 
     @Override
     public RakNetDatagram retain() {
@@ -36,6 +95,9 @@ public class RakNetDatagram extends AbstractReferenceCounted {
 
     @Override
     public RakNetDatagram touch(Object hint) {
+        if (leak != null) {
+            leak.record(hint);
+        }
         for (EncapsulatedPacket packet : packets) {
             packet.touch(hint);
         }
@@ -74,14 +136,52 @@ public class RakNetDatagram extends AbstractReferenceCounted {
 
     @Override
     public boolean release() {
+        if (leak != null) {
+            leak.record();
+        }
         return super.release();
     }
 
     @Override
     protected void deallocate() {
+        // Datagrams which are sent own their packets
         for (EncapsulatedPacket packet : packets) {
             packet.release();
+            packet.recycle();
+        }
+        this.recycle();
+    }
+
+    /**
+     * Return a received datagram to the pool. Its packets are slices of the received buffer which may still be queued
+     * for ordering or reassembly, so they are neither released nor recycled.
+     */
+    void recycleDecoded() {
+        if (LEAK_DETECTOR != null && this.refCnt() != 1) {
+            // Received datagrams are never retained
+            throw new IllegalReferenceCountException(this.refCnt(), -1);
+        }
+        this.setRefCnt(0);
+        this.recycle();
+    }
+
+    private void recycle() {
+        if (LEAK_DETECTOR != null) {
+            // Still scheduled for retransmission means the session holds on to it
+            Preconditions.checkState(wheelSlot == -1, "Datagram %s recycled while scheduled for retransmission", sequenceIndex);
+        }
+        if (leak != null) {
+            leak.close(this);
+            leak = null;
         }
+        packets.clear();
+        flags = FLAG_VALID;
+        nextSend = 0;
+        sequenceIndex = -1;
+        wheelPrev = null;
+        wheelNext = null;
+        wheelSlot = -1;
+        handle.recycle(this);
     }
 
     public int getSize() {
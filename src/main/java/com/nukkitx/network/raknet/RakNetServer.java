@@ -1,12 +1,21 @@
 package com.nukkitx.network.raknet;
 
+import com.nukkitx.network.NetworkUtils;
 import com.nukkitx.network.raknet.pipeline.*;
+import com.nukkitx.network.raknet.util.AddressBlocklist;
+import com.nukkitx.network.raknet.util.RateLimiter;
+import com.nukkitx.network.raknet.util.SocketAddressMap;
 import com.nukkitx.network.util.Bootstraps;
+import com.nukkitx.network.util.CountingRecvByteBufAllocator;
 import com.nukkitx.network.util.DisconnectReason;
 import com.nukkitx.network.util.EventLoops;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.DatagramPacket;
+import org.itxtech.nemisys.Nemisys;
 import org.itxtech.nemisys.Server;
 
 import javax.annotation.Nullable;
@@ -14,21 +23,26 @@ import javax.annotation.ParametersAreNonnullByDefault;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static com.nukkitx.network.raknet.RakNetConstants.*;
 
 @ParametersAreNonnullByDefault
 public class RakNetServer extends RakNet {
 
-    private static final ConcurrentMap<InetAddress, Long> blockAddresses = new ConcurrentHashMap<>();
-    final ConcurrentMap<InetSocketAddress, RakNetServerSession> sessionsByAddress = new ConcurrentHashMap<>();
+    private static final AddressBlocklist blocklist = new AddressBlocklist();
+    final SocketAddressMap<RakNetServerSession> sessionsByAddress = new SocketAddressMap<>();
     final ConcurrentMap<InetAddress, Integer> sessionCount = new ConcurrentHashMap<>();
-    public final ConcurrentMap<InetAddress, Integer> packetsPerSecond = new ConcurrentHashMap<>();
+    public final RateLimiter pingLimiter = new RateLimiter(RATE_LIMIT_SLOTS, PING_RATE, PING_BURST);
+    public final RateLimiter connectLimiter = new RateLimiter(RATE_LIMIT_SLOTS, CONNECT_RATE, CONNECT_BURST);
+    public final RateLimiter datagramLimiter = new RateLimiter(RATE_LIMIT_SLOTS, DATAGRAM_RATE, DATAGRAM_BURST);
 
     private final InetSocketAddress bindAddress;
     private final int bindThreads;
@@ -38,8 +52,22 @@ public class RakNetServer extends RakNet {
     private final ServerDatagramHandler serverDatagramHandler = new ServerDatagramHandler(this);
     private final RakExceptionHandler exceptionHandler = new RakExceptionHandler(this);
 
+    private final LongAdder receivedDatagrams = new LongAdder();
+    private final HandshakeCookies cookies = new HandshakeCookies();
+    private final LongAdder cookieReplies = new LongAdder();
+    private final LongAdder verifiedCookies = new LongAdder();
+    private final LongAdder rejectedCookies = new LongAdder();
+    private final LongAdder receiveCalls = new LongAdder();
+
     private volatile RakNetServerListener listener = null;
-    private volatile Channel channel;
+    /**
+     * Magic, length and user data of the unconnected pong, everything after the ping time and the GUID
+     */
+    private volatile ByteBuf pongTail = encodePongTail(new byte[0]);
+    /**
+     * One channel per SO_REUSEPORT socket, the kernel hashes every remote address to one of them
+     */
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
 
     public RakNetServer(InetSocketAddress bindAddress) {
         this(bindAddress, 1);
@@ -57,7 +85,27 @@ public class RakNetServer extends RakNet {
         super(eventLoopGroup);
         this.bindThreads = bindThreads;
         this.bindAddress = bindAddress;
-        eventLoopGroup.scheduleAtFixedRate(packetsPerSecond::clear, 0, 1, TimeUnit.SECONDS);
+        this.setupReceive();
+    }
+
+    private void setupReceive() {
+        int bufferSize = 2048; // Netty default for datagram channels
+        if (EventLoops.getChannelType() == EventLoops.ChannelType.EPOLL) {
+            if (RECEIVE_BATCH_SIZE > 1) {
+                // recvmmsg is used when the buffer fits at least two datagrams, each read datagram is a slice of it
+                this.bootstrap.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, RECEIVE_DATAGRAM_SIZE);
+                bufferSize = RECEIVE_DATAGRAM_SIZE * RECEIVE_BATCH_SIZE;
+            }
+            if (UDP_GRO) {
+                this.bootstrap.option(EpollChannelOption.UDP_GRO, true);
+                bufferSize = Math.max(bufferSize, 65536);
+            }
+            if (bufferSize > 2048) {
+                // Large receive buffers are allocated on every read
+                this.bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+            }
+        }
+        this.bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR, new CountingRecvByteBufAllocator(new FixedRecvByteBufAllocator(bufferSize), this.receiveCalls));
     }
 
     @Override
@@ -71,43 +119,79 @@ public class RakNetServer extends RakNet {
         return Bootstraps.allOf(channelFutures);
     }
 
+    /**
+     * Set the user data sent in unconnected pongs
+     *
+     * @param userData server advertisement
+     */
+    public void setAdvertisement(@Nullable byte[] userData) {
+        this.pongTail = encodePongTail(userData == null ? new byte[0] : userData);
+    }
+
+    /**
+     * @return read only view of the shared pong tail, does not need to be released
+     */
+    public ByteBuf getPongTail() {
+        return this.pongTail.duplicate();
+    }
+
+    private static ByteBuf encodePongTail(byte[] userData) {
+        ByteBuffer tail = ByteBuffer.allocateDirect(RAKNET_UNCONNECTED_MAGIC.length + 2 + userData.length);
+        tail.put(RAKNET_UNCONNECTED_MAGIC).putShort((short) userData.length).put(userData).flip();
+        // Not reference counted, pongs which are still queued keep a replaced tail alive until they are written
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(tail).asReadOnly());
+    }
+
     public void send(InetSocketAddress address, ByteBuf buffer) {
-        if (this.channel != null) {
-            this.channel.writeAndFlush(new DatagramPacket(buffer, address));
+        Channel channel = this.getChannel(address);
+        if (channel != null) {
+            channel.writeAndFlush(new DatagramPacket(buffer, address));
+        } else {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Get the channel to send to an address from. Sessions keep the channel which received their first packet.
+     *
+     * @param address remote address
+     * @return channel or null if the server is not bound
+     */
+    @Nullable
+    private Channel getChannel(InetSocketAddress address) {
+        RakNetServerSession session = this.sessionsByAddress.get(address);
+        if (session != null) {
+            return session.getChannel();
+        }
+
+        List<Channel> channels = this.channels;
+        int size = channels.size();
+        if (size == 0) {
+            return null;
+        }
+        try {
+            return channels.get(Math.floorMod(address.hashCode(), size));
+        } catch (IndexOutOfBoundsException e) {
+            // Closed in the meantime
+            return null;
         }
     }
 
     @Override
     public void close(boolean force) {
         super.close(force);
-        for (RakNetServerSession session : this.sessionsByAddress.values()) {
-            session.disconnect(DisconnectReason.SHUTTING_DOWN);
-        }
-        if (this.channel != null) {
-            this.channel.close().syncUninterruptibly();
+        this.sessionsByAddress.forEach(session -> session.disconnect(DisconnectReason.SHUTTING_DOWN));
+        for (Channel channel : this.channels) {
+            channel.close().syncUninterruptibly();
         }
     }
 
-    private int blockListUpdateTick;
-
     @Override
     protected void onTick() {
         final long curTime = System.currentTimeMillis();
-        for (RakNetServerSession session : this.sessionsByAddress.values()) {
-            session.eventLoop.execute(() -> session.onTick(curTime));
-        }
-
-        if (this.blockListUpdateTick++ > 100) {
-            this.blockListUpdateTick = 0;
-            Iterator<Long> blockedAddresses = blockAddresses.values().iterator();
-            long timeout;
-            while (blockedAddresses.hasNext()) {
-                timeout = blockedAddresses.next();
-                if (timeout > 0 && timeout < curTime) {
-                    blockedAddresses.remove();
-                }
-            }
-        }
+        this.sessionsByAddress.forEach(session -> session.eventLoop.execute(() -> session.onTick(curTime)));
+
+        blocklist.expire(curTime);
     }
 
     public void onOpenConnectionRequest1(ChannelHandlerContext ctx, DatagramPacket packet) {
@@ -135,59 +219,189 @@ public class RakNetServer extends RakNet {
             Server.getInstance().getLogger().info(packet.sender() + " incompatible protocol");
         } else if (this.listener != null && !this.listener.onConnectionRequest(packet.sender(), packet.sender())) {
             Server.getInstance().getLogger().info(packet.sender() + " connection banned");
+        } else if (HANDSHAKE_COOKIES) {
+            // Nothing is allocated until the client echoes the cookie from its own address
+            this.sendCookieReply1(ctx, packet.sender(), mtu, protocolVersion);
         } else if (session == null) {
-            if (Server.maxSessions > 0) {
-                Integer sessions = this.sessionCount.get(address);
-                if (sessions == null) {
-                    this.sessionCount.put(address, 1);
-                } else {
-                    if (sessions > Server.maxSessions) {
-                        Server.getInstance().getLogger().info(packet.sender() + " ocr1 too many sessions");
-                        return;
-                    }
-                    this.sessionCount.put(address, sessions + 1);
+            this.createSession(ctx, packet.sender(), mtu, protocolVersion);
+        } else {
+            session.setMtu(mtu);
+            session.sendOpenConnectionReply1(); // Probably a packet loss occurred, send the reply again
+            Server.getInstance().getLogger().info(packet.sender() + " new connection reply (mtu=" + mtu + ')');
+        }
+    }
+
+    private void sendCookieReply1(ChannelHandlerContext ctx, InetSocketAddress sender, int mtu, int protocolVersion) {
+        if (this.maxSessionsReached(sender.getAddress())) {
+            Server.getInstance().getLogger().info(sender + " ocr1 too many sessions");
+            return;
+        }
+
+        ByteBuf buffer = ctx.alloc().ioBuffer(32);
+        buffer.writeByte(ID_OPEN_CONNECTION_REPLY_1);
+        RakNetUtils.writeUnconnectedMagic(buffer);
+        buffer.writeLong(this.guid);
+        buffer.writeBoolean(true); // Security
+        buffer.writeInt(this.cookies.generate(sender, protocolVersion));
+        buffer.writeShort(RakNetUtils.clamp(mtu, MINIMUM_MTU_SIZE, MAXIMUM_MTU_SIZE));
+        ctx.write(new DatagramPacket(buffer, sender));
+        this.cookieReplies.increment();
+    }
+
+    /**
+     * Open connection request 2 from an address without a session, only accepted with a valid cookie
+     *
+     * @return the new session or null if the cookie was not valid
+     */
+    @Nullable
+    public RakNetServerSession onOpenConnectionRequest2(ChannelHandlerContext ctx, DatagramPacket packet) {
+        ByteBuf buffer = packet.content();
+        if (!buffer.isReadable(16 + 5) || !RakNetUtils.verifyUnconnectedMagic(buffer)) {
+            return null;
+        }
+
+        int cookie = buffer.readInt();
+        int protocolVersion = this.cookies.verify(packet.sender(), cookie);
+        if (protocolVersion == -1) {
+            this.rejectedCookies.increment();
+            if (Nemisys.DEBUG > 1) {
+                Server.getInstance().getLogger().info(packet.sender() + " ocr2 with invalid cookie");
+            }
+            return null;
+        }
+        if (buffer.readBoolean()) {
+            buffer.skipBytes(64); // Challenge
+        }
+        NetworkUtils.readAddress(buffer);
+        int mtu = buffer.readUnsignedShort();
+
+        this.verifiedCookies.increment();
+        if (this.maxSessionsReached(packet.sender().getAddress())) {
+            Server.getInstance().getLogger().info(packet.sender() + " ocr2 too many sessions");
+            return null;
+        }
+        return this.createSession(ctx, packet.sender(), mtu, protocolVersion);
+    }
+
+    private boolean maxSessionsReached(InetAddress address) {
+        if (Server.maxSessions <= 0) {
+            return false;
+        }
+        Integer sessions = this.sessionCount.get(address);
+        return sessions != null && sessions > Server.maxSessions;
+    }
+
+    @Nullable
+    private RakNetServerSession createSession(ChannelHandlerContext ctx, InetSocketAddress sender, int mtu, int protocolVersion) {
+        InetAddress address = sender.getAddress();
+        if (Server.maxSessions > 0) {
+            Integer sessions = this.sessionCount.get(address);
+            if (sessions == null) {
+                this.sessionCount.put(address, 1);
+            } else {
+                if (sessions > Server.maxSessions) {
+                    Server.getInstance().getLogger().info(sender + " ocr1 too many sessions");
+                    return null;
                 }
+                this.sessionCount.put(address, sessions + 1);
             }
+        }
 
-            // Passed all checks. Now create the session and send the first reply.
-            session = new RakNetServerSession(this, packet.sender(), ctx.channel(),
-                    ctx.channel().eventLoop().next(), mtu, protocolVersion);
-            if (this.sessionsByAddress.putIfAbsent(packet.sender(), session) == null) {
-                session.setState(RakNetState.INITIALIZING);
+        // Passed all checks. Now create the session and send the first reply.
+        // The session stays on the event loop of the socket that received its first packet, so its writes never hop threads.
+        // With SO_REUSEPORT the kernel hashes each address to one socket, which spreads the sessions over the loops.
+        EventLoop eventLoop = ctx.channel().eventLoop();
+        RakNetServerSession session = new RakNetServerSession(this, sender, ctx.channel(), eventLoop, mtu, protocolVersion);
+        if (this.sessionsByAddress.putIfAbsent(sender, session) == null) {
+            session.setState(RakNetState.INITIALIZING);
+            if (!HANDSHAKE_COOKIES) {
                 session.sendOpenConnectionReply1();
-                if (listener != null) {
-                    listener.onSessionCreation(session);
-                } else {
-                    Server.getInstance().getLogger().warning("Unable to create session for " + packet.sender() + ": listener is null");
-                }
+            }
+            if (listener != null) {
+                listener.onSessionCreation(session);
             } else {
-                Server.getInstance().getLogger().info("Previous session was still listed for " + packet.sender());
+                Server.getInstance().getLogger().warning("Unable to create session for " + sender + ": listener is null");
             }
+            return session;
         } else {
-            session.setMtu(mtu);
-            session.sendOpenConnectionReply1(); // Probably a packet loss occurred, send the reply again
-            Server.getInstance().getLogger().info(packet.sender() + " new connection reply (mtu=" + mtu + ')');
+            Server.getInstance().getLogger().info("Previous session was still listed for " + sender);
+            return null;
         }
     }
 
     public void block(InetAddress address) {
         Objects.requireNonNull(address, "address");
-        blockAddresses.put(address, -1L);
+        this.block(address, address.getAddress().length * 8);
     }
 
     public void block(InetAddress address, long timeout, TimeUnit timeUnit) {
         Objects.requireNonNull(address, "address");
-        Objects.requireNonNull(address, "timeUnit");
-        blockAddresses.put(address, System.currentTimeMillis() + timeUnit.toMillis(timeout));
+        this.block(address, address.getAddress().length * 8, timeout, timeUnit);
+    }
+
+    /**
+     * Block a CIDR range permanently
+     *
+     * @param address any address in the range
+     * @param prefixLength number of leading bits of the range
+     */
+    public void block(InetAddress address, int prefixLength) {
+        Objects.requireNonNull(address, "address");
+        blocklist.block(address, prefixLength, AddressBlocklist.PERMANENT);
+    }
+
+    public void block(InetAddress address, int prefixLength, long timeout, TimeUnit timeUnit) {
+        Objects.requireNonNull(address, "address");
+        Objects.requireNonNull(timeUnit, "timeUnit");
+        blocklist.block(address, prefixLength, System.currentTimeMillis() + timeUnit.toMillis(timeout));
     }
 
     public boolean unblock(InetAddress address) {
         Objects.requireNonNull(address, "address");
-        return blockAddresses.remove(address) != null;
+        return blocklist.unblock(address, address.getAddress().length * 8);
+    }
+
+    public boolean unblock(InetAddress address, int prefixLength) {
+        Objects.requireNonNull(address, "address");
+        return blocklist.unblock(address, prefixLength);
     }
 
     public boolean isBlocked(InetAddress address) {
-        return blockAddresses.containsKey(address);
+        return blocklist.isBlocked(address, System.currentTimeMillis());
+    }
+
+    public AddressBlocklist getBlocklist() {
+        return blocklist;
+    }
+
+    public void onDatagramReceived() {
+        this.receivedDatagrams.increment();
+    }
+
+    public long getReceivedDatagrams() {
+        return this.receivedDatagrams.sum();
+    }
+
+    /**
+     * @return number of reads from the sockets, one recvmmsg call counts as one read
+     */
+    public long getReceiveCalls() {
+        return this.receiveCalls.sum();
+    }
+
+    /**
+     * @return open connection replies sent without allocating a session
+     */
+    public long getCookieReplies() {
+        return this.cookieReplies.sum();
+    }
+
+    public long getVerifiedCookies() {
+        return this.verifiedCookies.sum();
+    }
+
+    public long getRejectedCookies() {
+        return this.rejectedCookies.sum();
     }
 
     public int getSessionCount() {
@@ -222,7 +436,8 @@ public class RakNetServer extends RakNet {
             pipeline.addLast(ServerMessageHandler.NAME, RakNetServer.this.messageHandler);
             pipeline.addLast(ServerDatagramHandler.NAME, RakNetServer.this.serverDatagramHandler);
             pipeline.addLast(RakExceptionHandler.NAME, RakNetServer.this.exceptionHandler);
-            RakNetServer.this.channel = channel;
+            RakNetServer.this.channels.add(channel);
+            channel.closeFuture().addListener(future -> RakNetServer.this.channels.remove(channel));
         }
     }
 }
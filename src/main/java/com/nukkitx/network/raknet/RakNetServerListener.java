@@ -3,7 +3,6 @@ package com.nukkitx.network.raknet;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 
-import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.net.InetSocketAddress;
 
@@ -29,15 +28,6 @@ public interface RakNetServerListener {
         throw new UnsupportedOperationException("RakNetServerListener#onConnectionRequest is not implemented");
     }
 
-    /**
-     * Called when an unconnected client pings the server to retrieve it's status and MOTD.
-     *
-     * @param address address of client pinging the server
-     * @return custom user data sent back to the client
-     */
-    @Nullable
-    byte[] onQuery(InetSocketAddress address);
-
     /**
      * Called when a session is established. This does not mean the session has fully connected but has started the
      * RakNet connection sequence. To find out when the session has finished connecting, use
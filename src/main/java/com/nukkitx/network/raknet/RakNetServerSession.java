@@ -78,6 +78,14 @@ public class RakNetServerSession extends RakNetSession {
             return;
         }
 
+        if (HANDSHAKE_COOKIES) {
+            // The cookie was verified before the session was created
+            buffer.skipBytes(4);
+            if (buffer.readBoolean()) {
+                buffer.skipBytes(64); // Challenge
+            }
+        }
+
         NetworkUtils.readAddress(buffer);
 
         int mtu = buffer.readUnsignedShort();
@@ -9,7 +9,6 @@ import io.netty.channel.Channel;
 import io.netty.channel.EventLoop;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.util.ReferenceCountUtil;
-import io.netty.util.internal.PlatformDependent;
 import lombok.Getter;
 import lombok.Setter;
 import org.itxtech.nemisys.Nemisys;
@@ -20,9 +19,6 @@ import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 import static com.nukkitx.network.raknet.RakNetConstants.*;
 
@@ -33,6 +29,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     final Channel channel;
     final EventLoop eventLoop;
     final int protocolVersion;
+    private final SegmentedDatagramWriter datagramWriter;
     private int mtu;
     private int adjustedMtu; // Used in datagram calculations
     long guid;
@@ -41,7 +38,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     private volatile boolean closed = false;
 
     // Reliability, Ordering, Sequencing and datagram indexes
-    private RakNetSlidingWindow slidingWindow;
+    private CongestionController congestionController;
     private int splitIndex;
     private int datagramReadIndex;
     private int datagramWriteIndex;
@@ -53,8 +50,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     private RoundRobinArray<SplitPacketHelper> splitPackets;
     private BitQueue reliableDatagramQueue;
 
-    private FastBinaryMinHeap<EncapsulatedPacket> outgoingPackets;
-    private long[] outgoingPacketNextWeights;
+    private OutgoingPacketQueue outgoingPackets;
     private FastBinaryMinHeap<EncapsulatedPacket>[] orderingHeaps;
     @Getter
     @Setter
@@ -62,20 +58,17 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     private volatile long currentPingTime = -1;
     private volatile long lastPingTime = -1;
     private volatile long lastPongTime = -1;
-    private ConcurrentMap<Integer, RakNetDatagram> sentDatagrams;
-    private Queue<IntRange> incomingAcks;
-    private Queue<IntRange> incomingNaks;
-    private Queue<IntRange> outgoingAcks;
-    private Queue<IntRange> outgoingNaks;
+    private SentDatagramWindow sentDatagrams;
+    private RetransmissionWheel retransmissionWheel;
+    private IntRangeList outgoingAcks;
+    private IntRangeList outgoingNaks;
     private int unackedBytes;
-    private long lastMinWeight;
-    public volatile int pps;
-    private long lastUpdate;
 
     RakNetSession(InetSocketAddress address, Channel channel, EventLoop eventLoop, int mtu, int protocolVersion) {
         this.address = address;
         this.channel = channel;
         this.eventLoop = eventLoop;
+        this.datagramWriter = new SegmentedDatagramWriter(channel, address);
         this.setMtu(mtu);
         this.protocolVersion = protocolVersion;
     }
@@ -83,7 +76,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     final void initialize() {
         Preconditions.checkState(this.state == RakNetState.INITIALIZING);
 
-        this.slidingWindow = new RakNetSlidingWindow(this.mtu);
+        this.congestionController = CongestionController.create(CONGESTION_CONTROL, this.mtu);
 
         this.reliableDatagramQueue = new BitQueue(512);
         this.orderReadIndex = new int[MAXIMUM_ORDERING_CHANNELS];
@@ -92,20 +85,17 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         //noinspection unchecked
         this.orderingHeaps = new FastBinaryMinHeap[MAXIMUM_ORDERING_CHANNELS];
         this.splitPackets = new RoundRobinArray<>(256);
-        this.sentDatagrams = new ConcurrentSkipListMap<>();
+        this.sentDatagrams = new SentDatagramWindow(512);
+        this.retransmissionWheel = new RetransmissionWheel();
         for (int i = 0; i < MAXIMUM_ORDERING_CHANNELS; i++) {
             orderingHeaps[i] = new FastBinaryMinHeap<>(64);
         }
 
-        this.outgoingPackets = new FastBinaryMinHeap<>(8);
+        this.outgoingPackets = new OutgoingPacketQueue();
 
-        this.incomingAcks = PlatformDependent.newMpscQueue();
-        this.incomingNaks = PlatformDependent.newMpscQueue();
-        this.outgoingAcks = PlatformDependent.newMpscQueue();
-        this.outgoingNaks = PlatformDependent.newMpscQueue();
+        this.outgoingAcks = new IntRangeList(64);
+        this.outgoingNaks = new IntRangeList(16);
 
-        this.outgoingPacketNextWeights = new long[4];
-        this.initHeapWeights();
     }
 
     private void deinitialize() {
@@ -113,9 +103,13 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         if (this.splitPackets != null) {
             this.splitPackets.forEach(ReferenceCountUtil::release);
         }
+        if (this.retransmissionWheel != null) {
+            this.retransmissionWheel.clear();
+        }
         if (this.sentDatagrams != null) {
-            this.sentDatagrams.values().forEach(ReferenceCountUtil::release);
+            this.sentDatagrams.releaseAll();
         }
+        this.datagramWriter.release();
 
         FastBinaryMinHeap<EncapsulatedPacket>[] orderingHeaps = this.orderingHeaps;
         this.orderingHeaps = null;
@@ -128,7 +122,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             }
         }
 
-        FastBinaryMinHeap<EncapsulatedPacket> outgoingPackets = this.outgoingPackets;
+        OutgoingPacketQueue outgoingPackets = this.outgoingPackets;
         this.outgoingPackets = null;
         if (outgoingPackets != null) {
             EncapsulatedPacket packet;
@@ -149,7 +143,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     void setMtu(int mtu) {
         this.mtu = RakNetUtils.clamp(mtu, MINIMUM_MTU_SIZE, MAXIMUM_MTU_SIZE);
         this.adjustedMtu = (this.mtu - UDP_HEADER_SIZE) - (this.address.getAddress() instanceof Inet6Address ? 40 : 20);
-        this.slidingWindow = new RakNetSlidingWindow(this.mtu);
+        this.congestionController = CongestionController.create(CONGESTION_CONTROL, this.mtu);
     }
 
     public int getProtocolVersion() {
@@ -164,26 +158,20 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         return this.channel.alloc().ioBuffer(capacity);
     }
 
-    private void initHeapWeights() {
-        for (int priorityLevel = 0; priorityLevel < 4; priorityLevel++) {
-            this.outgoingPacketNextWeights[priorityLevel] = (1L << priorityLevel) * priorityLevel + priorityLevel;
-        }
-    }
-
-    private long getNextWeight(RakNetPriority priority) {
-        int priorityLevel = priority.ordinal();
-        long next = this.outgoingPacketNextWeights[priorityLevel];
-
-        if (!this.outgoingPackets.isEmpty()) {
-            if (next >= this.lastMinWeight) {
-                next = this.lastMinWeight + (1L << priorityLevel) * priorityLevel + priorityLevel;
-                this.outgoingPacketNextWeights[priorityLevel] = next + (1L << priorityLevel) * (priorityLevel + 1) + priorityLevel;
-            }
-        } else {
-            this.initHeapWeights();
+    /**
+     * Get a packet which can be kept until later. Received packets are slices of the buffer a whole batch of
+     * datagrams was read into, a packet waiting in a queue would keep all of it from being reused.
+     *
+     * @return the packet itself retained if it has its own buffer, a copy of it otherwise
+     */
+    public EncapsulatedPacket retainForLater(EncapsulatedPacket packet) {
+        ByteBuf buffer = packet.getBuffer();
+        if (buffer.unwrap() == null) {
+            return packet.retain();
         }
-        this.lastMinWeight = next - (1L << priorityLevel) * priorityLevel + priorityLevel;
-        return next;
+        ByteBuf copy = this.allocateBuffer(buffer.readableBytes());
+        copy.writeBytes(buffer, buffer.readerIndex(), buffer.readableBytes());
+        return packet.withBuffer(copy);
     }
 
     private EncapsulatedPacket getReassembledPacket(EncapsulatedPacket splitPacket) {
@@ -229,9 +217,9 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
 
             // Check if we have received acknowledge datagram
             if ((potentialFlags & FLAG_ACK) != 0) {
-                this.onAcknowledge(buffer, this.incomingAcks);
+                this.onAcknowledge(buffer, false);
             } else if ((potentialFlags & FLAG_NACK) != 0) {
-                this.onAcknowledge(buffer, this.incomingNaks);
+                this.onAcknowledge(buffer, true);
             } else {
                 buffer.readerIndex(0);
                 this.onRakNetDatagram(buffer);
@@ -290,10 +278,17 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         if (this.state == null || RakNetState.INITIALIZED.compareTo(this.state) > 0) {
             return;
         }
-        RakNetDatagram datagram = new RakNetDatagram(System.currentTimeMillis());
-        datagram.decode(buffer);
+        RakNetDatagram datagram = RakNetDatagram.newInstance(System.currentTimeMillis());
+        try {
+            datagram.decode(buffer);
+            this.onRakNetDatagram(datagram);
+        } finally {
+            datagram.recycleDecoded();
+        }
+    }
 
-        this.slidingWindow.onPacketReceived(datagram.sendTime);
+    private void onRakNetDatagram(RakNetDatagram datagram) {
+        this.congestionController.onPacketReceived(datagram.sendTime);
 
         int prevSequenceIndex = this.datagramReadIndex;
         if (prevSequenceIndex <= datagram.sequenceIndex) {
@@ -302,10 +297,10 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
 
         int missedDatagrams = datagram.sequenceIndex - prevSequenceIndex;
         if (missedDatagrams > 0) {
-            this.outgoingNaks.offer(new IntRange(datagram.sequenceIndex - missedDatagrams, datagram.sequenceIndex - 1));
+            this.outgoingNaks.add(datagram.sequenceIndex - missedDatagrams, datagram.sequenceIndex - 1);
         }
 
-        this.outgoingAcks.offer(new IntRange(datagram.sequenceIndex, datagram.sequenceIndex));
+        this.outgoingAcks.add(datagram.sequenceIndex);
 
         for (final EncapsulatedPacket encapsulated : datagram.packets) {
             if (encapsulated.reliability.isReliable()) {
@@ -374,7 +369,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
 
         if (this.orderReadIndex[packet.orderingChannel] < packet.orderingIndex) {
             // Not next in line so add to queue.
-            binaryHeap.insert(packet.orderingIndex, packet.retain());
+            binaryHeap.insert(packet.orderingIndex, this.retainForLater(packet));
             return;
         } else if (this.orderReadIndex[packet.orderingChannel] > packet.orderingIndex) {
             // We already have this
@@ -409,10 +404,6 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             return;
         }
         this.tick(curTime);
-        if (curTime - this.lastUpdate > 1000) {
-            this.pps = 0;
-            this.lastUpdate = curTime;
-        }
     }
 
     protected void tick(long curTime) {
@@ -429,27 +420,18 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             this.sendConnectedPing(curTime);
         }
 
-        this.handleIncomingAcknowledge(curTime, this.incomingAcks, false);
-        this.handleIncomingAcknowledge(curTime, this.incomingNaks, true);
-
-        // Send known outgoing acknowledge packets.
         final int mtu = this.adjustedMtu - RAKNET_DATAGRAM_HEADER_SIZE;
 
-        while (!this.outgoingAcks.isEmpty()) {
-            ByteBuf buffer = this.allocateBuffer(mtu);
-            buffer.writeByte(FLAG_VALID | FLAG_ACK);
-            RakNetUtils.writeIntRanges(buffer, this.outgoingAcks, mtu - 1);
-            this.sendDirect(buffer);
-            this.slidingWindow.onSendAck();
-        }
-
+        // Losses are reported right away so the remote side can resend quickly
         while (!this.outgoingNaks.isEmpty()) {
             ByteBuf buffer = this.allocateBuffer(mtu);
             buffer.writeByte(FLAG_VALID | FLAG_NACK);
             RakNetUtils.writeIntRanges(buffer, this.outgoingNaks, mtu - 1);
-            this.sendDirect(buffer);
+            this.channel.write(new DatagramPacket(buffer, this.address));
         }
 
+        int writeIndex = this.datagramWriteIndex;
+
         // Send packets that are stale first. This function returns whether or not to continue
         // send the rest of the datagrams, as it might close the client due to too many stale packets
         if (!this.sendStaleDatagrams(curTime)) {
@@ -458,38 +440,28 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
 
         // Now send usual packets
         this.sendDatagrams(curTime);
-        // Finally flush channel
-        this.channel.flush();
-    }
 
-    private void handleIncomingAcknowledge(long curTime, Queue<IntRange> queue, boolean nack) {
-        if (queue.isEmpty()) {
-            return;
+        // ACKs are delayed up to CC_SYN to cover more datagrams, unless they can go out with the data written
+        // in this tick anyway
+        if (!this.outgoingAcks.isEmpty() && (writeIndex != this.datagramWriteIndex || this.congestionController.shouldSendAcks(curTime))) {
+            do {
+                ByteBuf buffer = this.allocateBuffer(mtu);
+                buffer.writeByte(FLAG_VALID | FLAG_ACK);
+                RakNetUtils.writeIntRanges(buffer, this.outgoingAcks, mtu - 1);
+                this.channel.write(new DatagramPacket(buffer, this.address));
+            } while (!this.outgoingAcks.isEmpty());
+            this.congestionController.onSendAck();
         }
 
-        if (nack) {
-            this.slidingWindow.onNak();
-        }
-
-        IntRange range;
-        while ((range = queue.poll()) != null) {
-            for (int i = range.start; i <= range.end; i++) {
-                RakNetDatagram datagram = this.sentDatagrams.remove(i);
-                if (datagram != null) {
-                    if (nack) {
-                        this.onIncomingNack(datagram, curTime);
-                    } else {
-                        this.onIncomingAck(datagram, curTime);
-                    }
-                }
-            }
-        }
+        // Finally flush everything written in this tick at once
+        this.datagramWriter.flush();
+        this.channel.flush();
     }
 
     private void onIncomingAck(RakNetDatagram datagram, long curTime) {
         try {
             this.unackedBytes -= datagram.getSize();
-            this.slidingWindow.onAck(curTime - datagram.sendTime, datagram.sequenceIndex, this.datagramReadIndex);
+            this.congestionController.onAck(curTime, curTime - datagram.sendTime, datagram.sequenceIndex, this.datagramReadIndex);
         } finally {
             datagram.release();
         }
@@ -503,23 +475,24 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
     }
 
     private boolean sendStaleDatagrams(long curTime) {
-        if (this.sentDatagrams.isEmpty()) {
+        RetransmissionWheel wheel = this.retransmissionWheel;
+        if (wheel.isEmpty()) {
             return true;
         }
 
         int resendCount = 0;
-        int transmissionBandwidth = this.slidingWindow.getRetransmissionBandwidth(this.unackedBytes);
+        int transmissionBandwidth = this.congestionController.getRetransmissionBandwidth(this.unackedBytes);
 
-        for (RakNetDatagram datagram : this.sentDatagrams.values()) {
-            if (datagram.getNextSend() <= curTime) {
-                int size = datagram.getSize();
-                if (transmissionBandwidth < size) {
-                    break;
-                }
-                transmissionBandwidth -= size;
-                resendCount++;
-                this.sendDatagram(datagram, curTime);
+        // Resending moves the datagram to its new slot, so it is not returned again in this tick
+        RakNetDatagram datagram;
+        while ((datagram = wheel.peekExpired(curTime)) != null) {
+            int size = datagram.getSize();
+            if (transmissionBandwidth < size) {
+                break;
             }
+            transmissionBandwidth -= size;
+            resendCount++;
+            this.sendDatagram(datagram, curTime);
         }
 
         if (resendCount > MAXIMUM_STALE_DATAGRAMS) {
@@ -529,7 +502,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         }
 
         if (resendCount > 0) {
-            this.slidingWindow.onResend(curTime);
+            this.congestionController.onResend(curTime, this.datagramWriteIndex);
         }
 
         return true;
@@ -540,8 +513,8 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             return;
         }
 
-        int transmissionBandwidth = this.slidingWindow.getTransmissionBandwidth(this.unackedBytes);
-        RakNetDatagram datagram = new RakNetDatagram(curTime);
+        int transmissionBandwidth = this.congestionController.getTransmissionBandwidth(this.unackedBytes);
+        RakNetDatagram datagram = RakNetDatagram.newInstance(curTime);
         EncapsulatedPacket packet;
 
         while ((packet = this.outgoingPackets.peek()) != null) {
@@ -557,7 +530,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             if (!datagram.tryAddPacket(packet, this.adjustedMtu)) {
                 this.sendDatagram(datagram, curTime);
 
-                datagram = new RakNetDatagram(curTime);
+                datagram = RakNetDatagram.newInstance(curTime);
                 if (!datagram.tryAddPacket(packet, this.adjustedMtu)) {
                     throw new IllegalArgumentException("Packet too large to fit in MTU (size: " + packet.getSize() + ", MTU: " + this.adjustedMtu +")");
                 }
@@ -566,6 +539,8 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
 
         if (!datagram.getPackets().isEmpty()) {
             this.sendDatagram(datagram, curTime);
+        } else {
+            datagram.release();
         }
     }
 
@@ -664,12 +639,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
                 return;
             }
 
-            long weight = this.getNextWeight(priority);
-            if (packets.length == 1) {
-                this.outgoingPackets.insert(weight, packets[0]);
-            } else {
-                this.outgoingPackets.insertSeries(weight, packets);
-            }
+            this.outgoingPackets.add(priority, packets);
         } finally {
             buf.release();
         }
@@ -679,7 +649,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         long curTime = System.currentTimeMillis();
 
         for (EncapsulatedPacket packet : packets) {
-            RakNetDatagram datagram = new RakNetDatagram(curTime);
+            RakNetDatagram datagram = RakNetDatagram.newInstance(curTime);
 
             if (!datagram.tryAddPacket(packet, this.adjustedMtu)) {
                 throw new IllegalArgumentException("Packet too large to fit in MTU (size: " + packet.getSize() +
@@ -687,6 +657,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             }
             this.sendDatagram(datagram, curTime);
         }
+        this.datagramWriter.flush();
         this.channel.flush();
     }
 
@@ -742,7 +713,7 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         // Now create the packets.
         EncapsulatedPacket[] packets = new EncapsulatedPacket[buffers.length];
         for (int i = 0, parts = buffers.length; i < parts; i++) {
-            EncapsulatedPacket packet = new EncapsulatedPacket();
+            EncapsulatedPacket packet = EncapsulatedPacket.newInstance();
             packet.needsBAS = true;
             packet.buffer = buffers[i];
             packet.orderingChannel = (short) orderingChannel;
@@ -769,25 +740,28 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
         Preconditions.checkArgument(!datagram.packets.isEmpty(), "RakNetDatagram with no packets");
         try {
             int oldIndex = datagram.sequenceIndex;
+            if (oldIndex != -1) {
+                // The window finds a datagram by its current index, so a resend is removed before it is renumbered
+                this.sentDatagrams.remove(oldIndex);
+            }
             datagram.sequenceIndex = this.datagramWriteIndex++;
 
             for (EncapsulatedPacket packet : datagram.packets) {
                 // check if packet is reliable so it can be resent later if a NAK is received.
                 if (packet.reliability.isReliable()) {
-                    datagram.nextSend = time + this.slidingWindow.getRtoForRetransmission();
+                    datagram.nextSend = time + this.congestionController.getRtoForRetransmission();
                     if (oldIndex == -1) {
                         this.unackedBytes += datagram.getSize();
-                    } else {
-                        this.sentDatagrams.remove(oldIndex, datagram);
                     }
-                    this.sentDatagrams.put(datagram.sequenceIndex, datagram.retain()); // Keep for resending
+                    this.sentDatagrams.put(datagram.retain()); // Keep for resending
+                    this.retransmissionWheel.schedule(datagram);
                     break;
                 }
             }
             ByteBuf buf = this.allocateBuffer(datagram.getSize());
             Preconditions.checkArgument(buf.writerIndex() < this.adjustedMtu, "Packet length was %s but expected %s", buf.writerIndex(), this.adjustedMtu);
             datagram.encode(buf);
-            this.channel.write(new DatagramPacket(buf, this.address));
+            this.datagramWriter.write(buf);
         } finally {
             datagram.release();
         }
@@ -801,8 +775,14 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
      * Packet Handlers
      */
 
-    private void onAcknowledge(ByteBuf buffer, Queue<IntRange> queue) {
+    private void onAcknowledge(ByteBuf buffer, boolean nack) {
         this.checkForClosed();
+        long curTime = System.currentTimeMillis();
+        if (nack) {
+            this.congestionController.onNak(curTime);
+        }
+
+        // Applied right away, the session is only touched from its event loop
         int size = buffer.readUnsignedShort();
         for (int i = 0; i < size; i++) {
             boolean singleton = buffer.readBoolean();
@@ -811,12 +791,22 @@ public abstract class RakNetSession implements SessionConnection<ByteBuf> {
             int end = singleton ? start : buffer.readUnsignedMediumLE();
             if (start > end) {
                 if (Nemisys.DEBUG > 2) {
-                    Server.getInstance().getLogger().debug(this.address + ": IntRange with a start value " + start + " greater than an end value " + end);
+                    Server.getInstance().getLogger().debug(this.address + ": Range with a start value " + start + " greater than an end value " + end);
                 }
                 this.disconnect(DisconnectReason.BAD_PACKET);
                 return;
             }
-            queue.offer(new IntRange(start, end));
+            for (int sequenceIndex = start; sequenceIndex <= end; sequenceIndex++) {
+                RakNetDatagram datagram = this.sentDatagrams.acknowledge(sequenceIndex);
+                if (datagram != null) {
+                    this.retransmissionWheel.cancel(datagram);
+                    if (nack) {
+                        this.onIncomingNack(datagram, curTime);
+                    } else {
+                        this.onIncomingAck(datagram, curTime);
+                    }
+                }
+            }
         }
     }
 
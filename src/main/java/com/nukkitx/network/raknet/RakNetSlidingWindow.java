@@ -2,7 +2,7 @@ package com.nukkitx.network.raknet;
 
 import static com.nukkitx.network.raknet.RakNetConstants.*;
 
-public class RakNetSlidingWindow {
+public class RakNetSlidingWindow implements CongestionController {
 
     private final int mtu;
     private double cwnd;
@@ -19,10 +19,12 @@ public class RakNetSlidingWindow {
         this.cwnd = mtu;
     }
 
+    @Override
     public int getRetransmissionBandwidth(int unAckedBytes) {
         return unAckedBytes;
     }
 
+    @Override
     public int getTransmissionBandwidth(int unAckedBytes) {
         if (unAckedBytes <= this.cwnd) {
             return (int) (this.cwnd - unAckedBytes);
@@ -31,13 +33,15 @@ public class RakNetSlidingWindow {
         }
     }
 
+    @Override
     public void onPacketReceived(long curTime) {
         if (this.oldestUnsentAck == 0) {
             this.oldestUnsentAck = curTime;
         }
     }
 
-    public void onResend(long curSequenceIndex) {
+    @Override
+    public void onResend(long curTime, long curSequenceIndex) {
         if (!this.backoffThisBlock && this.cwnd > this.mtu << 1) {
             this.ssThresh = this.cwnd / 2D;
 
@@ -51,13 +55,15 @@ public class RakNetSlidingWindow {
         }
     }
 
-    public void onNak() {
+    @Override
+    public void onNak(long curTime) {
         if (!this.backoffThisBlock) {
             this.ssThresh = this.cwnd / 2D;
         }
     }
 
-    public void onAck(long rtt, long sequenceIndex, long curSequenceIndex) {
+    @Override
+    public void onAck(long curTime, long rtt, long sequenceIndex, long curSequenceIndex) {
         this.lastRTT = rtt;
 
         if (this.estimatedRTT == -1) {
@@ -92,10 +98,12 @@ public class RakNetSlidingWindow {
         return this.cwnd <= this.ssThresh || this.ssThresh == 0;
     }
 
+    @Override
     public void onSendAck() {
         this.oldestUnsentAck = 0;
     }
 
+    @Override
     @SuppressWarnings("ManualMinMaxCalculation")
     public long getRtoForRetransmission() {
         if (this.estimatedRTT == -1) {
@@ -106,10 +114,12 @@ public class RakNetSlidingWindow {
         return threshold > CC_MAXIMUM_THRESHOLD ? CC_MAXIMUM_THRESHOLD : threshold;
     }
 
+    @Override
     public double getRTT() {
         return this.estimatedRTT;
     }
 
+    @Override
     public boolean shouldSendAcks(long curTime) {
         long rto = this.getSenderRtoForAck();
 
@@ -1,31 +1,29 @@
 package com.nukkitx.network.raknet;
 
-import com.nukkitx.network.raknet.util.IntRange;
+import com.nukkitx.network.raknet.util.IntRangeList;
 import io.netty.buffer.ByteBuf;
 import lombok.experimental.UtilityClass;
 
-import java.util.Arrays;
-import java.util.Queue;
-
 @UtilityClass
 public class RakNetUtils {
 
-    public static int writeIntRanges(ByteBuf buffer, Queue<IntRange> ackQueue, int mtu) {
+    public static int writeIntRanges(ByteBuf buffer, IntRangeList ranges, int mtu) {
         int lengthIndex = buffer.writerIndex();
         buffer.writeZero(2);
         mtu -= 2;
 
         int count = 0;
-        IntRange ackRange;
-        while ((ackRange = ackQueue.peek()) != null) {
-            if (ackRange.start == ackRange.end) {
+        while (!ranges.isEmpty()) {
+            int start = ranges.firstStart();
+            int end = ranges.firstEnd();
+            if (start == end) {
                 if (mtu < 4) {
                     break;
                 }
                 mtu -= 4;
 
                 buffer.writeBoolean(true);
-                buffer.writeMediumLE(ackRange.start);
+                buffer.writeMediumLE(start);
             } else {
                 if (mtu < 7) {
                     break;
@@ -33,10 +31,10 @@ public class RakNetUtils {
                 mtu -= 7;
 
                 buffer.writeBoolean(false);
-                buffer.writeMediumLE(ackRange.start);
-                buffer.writeMediumLE(ackRange.end);
+                buffer.writeMediumLE(start);
+                buffer.writeMediumLE(end);
             }
-            ackQueue.remove();
+            ranges.removeFirst();
             count++;
         }
 
@@ -48,10 +46,16 @@ public class RakNetUtils {
     }
 
     public static boolean verifyUnconnectedMagic(ByteBuf buffer) {
-        byte[] readMagic = new byte[RakNetConstants.RAKNET_UNCONNECTED_MAGIC.length];
-        buffer.readBytes(readMagic);
+        byte[] magic = RakNetConstants.RAKNET_UNCONNECTED_MAGIC;
+        int readerIndex = buffer.readerIndex();
+        buffer.skipBytes(magic.length);
 
-        return Arrays.equals(readMagic, RakNetConstants.RAKNET_UNCONNECTED_MAGIC);
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.getByte(readerIndex + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static void writeUnconnectedMagic(ByteBuf buffer) {
@@ -0,0 +1,134 @@
+package com.nukkitx.network.raknet;
+
+/**
+ * Hashed timing wheel of reliable datagrams keyed by the time they have to be resent. A tick only looks at the slots
+ * which expired since the last one instead of every datagram in flight.
+ * Not thread safe, only used from the event loop of the session.
+ */
+final class RetransmissionWheel {
+
+    /**
+     * Milliseconds per slot, same as the RakNet tick interval
+     */
+    private static final int RESOLUTION = 5;
+    /**
+     * 512 slots of 5 ms cover more than the maximum retransmission timeout, so datagrams are only visited when due
+     */
+    private static final int SLOTS = 512;
+    private static final int MASK = SLOTS - 1;
+
+    private final RakNetDatagram[] heads = new RakNetDatagram[SLOTS];
+    private final RakNetDatagram[] tails = new RakNetDatagram[SLOTS];
+    /**
+     * Next slot time to expire, -1 until the first datagram is scheduled
+     */
+    private long cursor = -1;
+    private int size;
+
+    /**
+     * Add a datagram at its next send time or move it there if it is already scheduled
+     *
+     * @param datagram reliable datagram
+     */
+    void schedule(RakNetDatagram datagram) {
+        this.cancel(datagram);
+
+        long tick = datagram.nextSend / RESOLUTION;
+        if (this.cursor == -1) {
+            this.cursor = tick;
+        } else if (tick < this.cursor) {
+            // Already due, expire it with the next slot
+            tick = this.cursor;
+        }
+
+        int slot = (int) (tick & MASK);
+        RakNetDatagram tail = this.tails[slot];
+        datagram.wheelSlot = slot;
+        datagram.wheelPrev = tail;
+        datagram.wheelNext = null;
+        if (tail == null) {
+            this.heads[slot] = datagram;
+        } else {
+            tail.wheelNext = datagram;
+        }
+        this.tails[slot] = datagram;
+        this.size++;
+    }
+
+    void cancel(RakNetDatagram datagram) {
+        int slot = datagram.wheelSlot;
+        if (slot == -1) {
+            return;
+        }
+
+        RakNetDatagram prev = datagram.wheelPrev;
+        RakNetDatagram next = datagram.wheelNext;
+        if (prev == null) {
+            this.heads[slot] = next;
+        } else {
+            prev.wheelNext = next;
+        }
+        if (next == null) {
+            this.tails[slot] = prev;
+        } else {
+            next.wheelPrev = prev;
+        }
+        datagram.wheelSlot = -1;
+        datagram.wheelPrev = null;
+        datagram.wheelNext = null;
+        this.size--;
+    }
+
+    /**
+     * Find the next datagram which has to be resent. It stays scheduled until it is resent or cancelled.
+     *
+     * @param curTime current time in milliseconds
+     * @return the datagram or null if none is due
+     */
+    RakNetDatagram peekExpired(long curTime) {
+        long now = curTime / RESOLUTION;
+        if (this.size == 0) {
+            this.cursor = now;
+            return null;
+        }
+
+        if (now - this.cursor > MASK) {
+            // Fell behind by a full turn, every slot has to be looked at once anyway
+            this.cursor = now - MASK;
+        }
+
+        while (this.cursor <= now) {
+            for (RakNetDatagram datagram = this.heads[(int) (this.cursor & MASK)]; datagram != null; datagram = datagram.wheelNext) {
+                if (datagram.nextSend <= curTime) {
+                    return datagram;
+                }
+            }
+            if (this.cursor == now) {
+                // Datagrams due later in the current slot are picked up by the next tick
+                break;
+            }
+            this.cursor++;
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    void clear() {
+        for (int i = 0; i < SLOTS; i++) {
+            RakNetDatagram datagram = this.heads[i];
+            while (datagram != null) {
+                RakNetDatagram next = datagram.wheelNext;
+                datagram.wheelSlot = -1;
+                datagram.wheelPrev = null;
+                datagram.wheelNext = null;
+                datagram = next;
+            }
+            this.heads[i] = null;
+            this.tails[i] = null;
+        }
+        this.size = 0;
+    }
+}
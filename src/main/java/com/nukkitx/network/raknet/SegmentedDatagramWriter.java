@@ -0,0 +1,139 @@
+package com.nukkitx.network.raknet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.SegmentedDatagramPacket;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.unix.Errors;
+import org.itxtech.nemisys.Server;
+
+import java.net.InetSocketAddress;
+
+import static com.nukkitx.network.raknet.RakNetConstants.UDP_GSO;
+
+/**
+ * Collects consecutive datagrams of the same size to one address and writes them as one segmented packet, so the
+ * kernel splits them (UDP_SEGMENT) instead of one sendmsg call per datagram. Only the last segment may be shorter.
+ * Falls back to plain datagrams when the transport or the kernel does not support it.
+ * Not thread safe, only used from the event loop of the session.
+ */
+final class SegmentedDatagramWriter {
+
+    private static final int MAXIMUM_SEGMENTS = 64;
+    private static final int MAXIMUM_SEGMENTED_SIZE = 65000;
+    /*
+        Errors of a segmented send when the kernel or the network device can not offload it, Linux errno values as
+        epoll only runs there
+     */
+    private static final int EIO = 5;
+    private static final int EINVAL = 22;
+
+    private static volatile boolean supported = true;
+
+    private final Channel channel;
+    private final InetSocketAddress address;
+    private final boolean enabled;
+
+    private ByteBuf first;
+    private CompositeByteBuf segments;
+    private int segmentSize;
+    private int segmentCount;
+    private int maximumSegments;
+
+    SegmentedDatagramWriter(Channel channel, InetSocketAddress address) {
+        this.channel = channel;
+        this.address = address;
+        this.enabled = UDP_GSO && channel instanceof EpollDatagramChannel && SegmentedDatagramPacket.isSupported();
+    }
+
+    /**
+     * Write a datagram, it is not written to the channel before {@link #flush()} if it can be segmented
+     *
+     * @param buffer encoded datagram
+     */
+    void write(ByteBuf buffer) {
+        if (!this.enabled || !supported) {
+            this.channel.write(new DatagramPacket(buffer, this.address));
+            return;
+        }
+
+        int size = buffer.readableBytes();
+        if (this.segmentCount > 0) {
+            if (size <= this.segmentSize && this.segmentCount < this.maximumSegments) {
+                this.add(buffer);
+                if (size < this.segmentSize) {
+                    // A shorter segment has to be the last one
+                    this.flush();
+                }
+                return;
+            }
+            this.flush();
+        }
+
+        this.first = buffer;
+        this.segmentSize = size;
+        this.segmentCount = 1;
+        this.maximumSegments = Math.max(Math.min(MAXIMUM_SEGMENTS, MAXIMUM_SEGMENTED_SIZE / Math.max(size, 1)), 1);
+    }
+
+    private void add(ByteBuf buffer) {
+        if (this.segments == null) {
+            this.segments = this.channel.alloc().compositeDirectBuffer(this.maximumSegments);
+            this.segments.addComponent(true, this.first);
+            this.first = null;
+        }
+        this.segments.addComponent(true, buffer);
+        this.segmentCount++;
+    }
+
+    /**
+     * Write the collected datagrams to the channel, the channel still has to be flushed
+     */
+    void flush() {
+        if (this.segmentCount == 0) {
+            return;
+        }
+
+        if (this.segments == null) {
+            this.channel.write(new DatagramPacket(this.first, this.address));
+        } else {
+            this.channel.write(new SegmentedDatagramPacket(this.segments, this.segmentSize, this.address))
+                    .addListener((ChannelFutureListener) future -> {
+                        if (!future.isSuccess() && supported && isOffloadUnsupported(future.cause())) {
+                            // Reliable datagrams of the failed send are resent
+                            supported = false;
+                            Server.getInstance().getLogger().warning("Segmented UDP send is not supported, falling back to single datagrams", future.cause());
+                        }
+                    });
+        }
+        this.first = null;
+        this.segments = null;
+        this.segmentCount = 0;
+    }
+
+    /**
+     * Transient errors like ENOBUFS or a channel closed while shutting down must not disable segmented sends
+     */
+    private static boolean isOffloadUnsupported(Throwable cause) {
+        if (!(cause instanceof Errors.NativeIoException)) {
+            return false;
+        }
+        int errno = -((Errors.NativeIoException) cause).expectedErr();
+        return errno == EIO || errno == EINVAL;
+    }
+
+    void release() {
+        if (this.first != null) {
+            this.first.release();
+            this.first = null;
+        }
+        if (this.segments != null) {
+            this.segments.release();
+            this.segments = null;
+        }
+        this.segmentCount = 0;
+    }
+}
@@ -0,0 +1,117 @@
+package com.nukkitx.network.raknet;
+
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Reliable datagrams waiting for an acknowledgement, indexed by sequence number in a ring buffer.
+ * Sequence numbers are assigned in order, so the in-flight datagrams always fall into one window of the ring.
+ * Not thread safe, only used from the event loop of the session.
+ */
+final class SentDatagramWindow {
+
+    private static final int SEQUENCE_MASK = 0xffffff;
+
+    private RakNetDatagram[] datagrams;
+    private int mask;
+    /**
+     * Lowest sequence index which may still be in the window
+     */
+    private int base;
+    /**
+     * One past the highest sequence index in the window
+     */
+    private int end;
+    private int size;
+
+    SentDatagramWindow(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+        this.datagrams = new RakNetDatagram[capacity];
+        this.mask = capacity - 1;
+    }
+
+    void put(RakNetDatagram datagram) {
+        int sequenceIndex = datagram.sequenceIndex;
+        if (this.size == 0) {
+            this.base = sequenceIndex;
+            this.end = sequenceIndex;
+        }
+
+        if (sequenceIndex - this.base >= this.datagrams.length) {
+            this.grow(sequenceIndex - this.base + 1);
+        }
+
+        this.datagrams[sequenceIndex & this.mask] = datagram;
+        this.size++;
+        if (sequenceIndex - this.end >= 0) {
+            this.end = sequenceIndex + 1;
+        }
+    }
+
+    RakNetDatagram get(int sequenceIndex) {
+        if (sequenceIndex - this.base < 0 || sequenceIndex - this.end >= 0) {
+            return null;
+        }
+
+        RakNetDatagram datagram = this.datagrams[sequenceIndex & this.mask];
+        return datagram != null && datagram.sequenceIndex == sequenceIndex ? datagram : null;
+    }
+
+    RakNetDatagram remove(int sequenceIndex) {
+        RakNetDatagram datagram = this.get(sequenceIndex);
+        if (datagram == null) {
+            return null;
+        }
+
+        this.datagrams[sequenceIndex & this.mask] = null;
+        this.size--;
+        while (this.base != this.end && this.datagrams[this.base & this.mask] == null) {
+            this.base++;
+        }
+        return datagram;
+    }
+
+    /**
+     * Remove a datagram by the 24 bit sequence number sent on the wire
+     *
+     * @param wireIndex sequence number from an ACK or NAK
+     * @return the datagram or null if it is not in flight
+     */
+    RakNetDatagram acknowledge(int wireIndex) {
+        return this.remove(this.base + ((wireIndex - this.base) & SEQUENCE_MASK));
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = this.datagrams.length;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+
+        RakNetDatagram[] datagrams = new RakNetDatagram[capacity];
+        int mask = capacity - 1;
+        for (int i = this.base; i != this.end; i++) {
+            datagrams[i & mask] = this.datagrams[i & this.mask];
+        }
+        this.datagrams = datagrams;
+        this.mask = mask;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void releaseAll() {
+        for (int i = this.base; i != this.end; i++) {
+            RakNetDatagram datagram = this.datagrams[i & this.mask];
+            if (datagram != null) {
+                this.datagrams[i & this.mask] = null;
+                ReferenceCountUtil.release(datagram);
+            }
+        }
+        this.size = 0;
+        this.base = this.end;
+    }
+}
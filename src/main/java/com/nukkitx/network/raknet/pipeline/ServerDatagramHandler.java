@@ -3,17 +3,17 @@ package com.nukkitx.network.raknet.pipeline;
 import com.nukkitx.network.raknet.RakNetServer;
 import com.nukkitx.network.raknet.RakNetServerSession;
 import com.nukkitx.network.raknet.RakNetUtils;
+import com.nukkitx.network.raknet.util.RateLimiter;
 import com.nukkitx.network.util.DisconnectReason;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
-import org.itxtech.nemisys.Nemisys;
 import org.itxtech.nemisys.Server;
 
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
 
 import static com.nukkitx.network.raknet.RakNetConstants.*;
@@ -23,7 +23,6 @@ public class ServerDatagramHandler extends SimpleChannelInboundHandler<DatagramP
 
     public static final String NAME = "rak-server-datagram-handler";
     private final RakNetServer server;
-    private static final long[] lastPing = new long[65536];
 
     public ServerDatagramHandler(RakNetServer server) {
         this.server = server;
@@ -31,30 +30,26 @@ public class ServerDatagramHandler extends SimpleChannelInboundHandler<DatagramP
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
-        RakNetServerSession session = null;
+        RakNetServerSession session = this.server.getSession(packet.sender());
+        ByteBuf buffer = packet.content();
+        short packetId = buffer.readByte();
+        long curTime = System.currentTimeMillis();
 
-        session = this.server.getSession(packet.sender());
         if (session == null) {
             InetAddress address = packet.sender().getAddress();
-            Integer pps = this.server.packetsPerSecond.get(address);
-            if (pps == null) pps = 0;
-            pps++;
-            if (pps > Server.batchLimit) {
+            RateLimiter limiter = packetId == ID_UNCONNECTED_PING ? this.server.pingLimiter : this.server.connectLimiter;
+            if (!limiter.tryAcquire(RateLimiter.key(address), curTime)) {
                 Server.getInstance().getLogger().warning("[Temp IP-Ban] No Session: Too many packets per second from " + packet.sender());
                 this.server.block(address, 120, TimeUnit.SECONDS);
                 return;
             }
-            this.server.packetsPerSecond.put(address, pps);
-            if (pps > 200 && pps % 100 == 0) {
-                Server.getInstance().getLogger().info(packet.sender() + " [No Session] pps=" + pps);
-            }
-        } else if (ppsKick(session, packet.sender())) {
+        } else if (!this.server.datagramLimiter.tryAcquire(RateLimiter.key(packet.sender()), curTime)) {
+            Server.getInstance().getLogger().warning("[Temp IP-Ban] RakNetServerSession: Too many packets per second from " + packet.sender());
+            this.server.block(packet.sender().getAddress(), 120, TimeUnit.SECONDS);
+            session.disconnect(DisconnectReason.BAD_PACKET);
             return;
         }
 
-        ByteBuf buffer = packet.content();
-        short packetId = buffer.readByte();
-
         // These packets don't require a session
         switch (packetId) {
             case ID_UNCONNECTED_PING:
@@ -63,6 +58,12 @@ public class ServerDatagramHandler extends SimpleChannelInboundHandler<DatagramP
             case ID_OPEN_CONNECTION_REQUEST_1:
                 this.server.onOpenConnectionRequest1(ctx, packet);
                 return;
+            case ID_OPEN_CONNECTION_REQUEST_2:
+                if (session == null && HANDSHAKE_COOKIES) {
+                    // Creates the session if the cookie is valid, the session then handles the request
+                    session = this.server.onOpenConnectionRequest2(ctx, packet);
+                }
+                break;
         }
 
         if (session == null) {
@@ -79,62 +80,33 @@ public class ServerDatagramHandler extends SimpleChannelInboundHandler<DatagramP
         }
     }
 
-    private boolean ppsKick(RakNetServerSession session, InetSocketAddress sender) {
-        int pps = session.pps + 1;
-        if (pps > Server.batchLimit) {
-            Server.getInstance().getLogger().warning("[Temp IP-Ban] RakNetServerSession: Too many packets per second from " + sender);
-            this.server.block(sender.getAddress(), 120, TimeUnit.SECONDS);
-            session.disconnect(DisconnectReason.BAD_PACKET);
-            return true;
-        }
-        session.pps = pps;
-        if (pps > 200 && pps % 100 == 0) {
-            Server.getInstance().getLogger().info(sender + " [RakNetServerSession] pps=" + pps);
-        }
-        return false;
-    }
-
     private void onUnconnectedPing(ChannelHandlerContext ctx, DatagramPacket packet) {
         if (!packet.content().isReadable(24)) {
             Server.getInstance().getLogger().info(packet.sender() + " ping unreadable");
             return;
         }
 
-        int port = packet.sender().getPort();
-        long now = System.currentTimeMillis();
-        long diff = now - lastPing[port];
-        if (diff < 5) {
-            if (Nemisys.DEBUG > 1) {
-                Server.getInstance().getLogger().info(packet.sender() + " sent next ping too quickly: " + diff);
-            }
-        } else {
-            lastPing[port] = now;
-        }
-
         long pingTime = packet.content().readLong();
         if (!RakNetUtils.verifyUnconnectedMagic(packet.content())) {
             Server.getInstance().getLogger().info(packet.sender() + " ping with unverified magic");
             return;
         }
 
-        byte[] userData = null;
-        if (this.server.getListener() != null) {
-            userData = this.server.getListener().onQuery(packet.sender());
-        }
-
-        if (userData == null) {
-            userData = new byte[0];
-        }
+        // Only the header differs between pongs, the encoded advertisement is shared
+        ByteBuf header = ctx.alloc().ioBuffer(17, 17);
+        header.writeByte(ID_UNCONNECTED_PONG);
+        header.writeLong(pingTime);
+        header.writeLong(this.server.getGuid());
 
-        int packetLength = 35 + userData.length;
+        CompositeByteBuf buffer = ctx.alloc().compositeDirectBuffer(2);
+        buffer.addComponents(true, header, this.server.getPongTail());
+        ctx.write(new DatagramPacket(buffer, packet.sender()));
+    }
 
-        ByteBuf buffer = ctx.alloc().ioBuffer(packetLength, packetLength);
-        buffer.writeByte(ID_UNCONNECTED_PONG);
-        buffer.writeLong(pingTime);
-        buffer.writeLong(this.server.getGuid());
-        RakNetUtils.writeUnconnectedMagic(buffer);
-        buffer.writeShort(userData.length);
-        buffer.writeBytes(userData);
-        ctx.writeAndFlush(new DatagramPacket(buffer, packet.sender()));
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // Replies to all datagrams of one read are flushed together
+        ctx.flush();
+        super.channelReadComplete(ctx);
     }
 }
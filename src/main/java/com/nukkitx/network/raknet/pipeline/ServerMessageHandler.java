@@ -21,6 +21,7 @@ public class ServerMessageHandler extends SimpleChannelInboundHandler<DatagramPa
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+        this.server.onDatagramReceived();
         InetAddress address = packet.sender().getAddress();
         if (this.server.isBlocked(address)) {
             // Drop incoming traffic from blocked address
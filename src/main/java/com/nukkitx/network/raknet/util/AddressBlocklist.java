@@ -0,0 +1,268 @@
+package com.nukkitx.network.raknet.util;
+
+import io.netty.util.NetUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Blocked addresses and CIDR ranges. Single addresses are kept in a map, ranges in a binary trie per address family,
+ * so a lookup costs one map access and at most one step per prefix bit. Temporary entries expire through a timing
+ * wheel with one second slots instead of scanning all entries.
+ * Lookups are lock free, changes are synchronized.
+ */
+public class AddressBlocklist {
+
+    public static final long PERMANENT = -1;
+
+    private static final int WHEEL_SLOTS = 512;
+    private static final int WHEEL_MASK = WHEEL_SLOTS - 1;
+
+    private final ConcurrentMap<InetAddress, Long> addresses = new ConcurrentHashMap<>();
+    private final Node root4 = new Node();
+    private final Node root6 = new Node();
+    private volatile int ranges;
+
+    @SuppressWarnings("unchecked")
+    private final List<Expiry>[] wheel = new List[WHEEL_SLOTS];
+    private long wheelSecond = System.currentTimeMillis() / 1000;
+
+    /**
+     * Block an address or a range
+     *
+     * @param address any address in the range
+     * @param prefixLength number of leading bits of the range, the address length blocks a single address
+     * @param expiry time in milliseconds the entry expires at or {@link #PERMANENT}
+     */
+    public synchronized void block(InetAddress address, int prefixLength, long expiry) {
+        byte[] bytes = address.getAddress();
+        int bits = bytes.length * 8;
+        if (prefixLength < 0 || prefixLength > bits) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength + " for " + address.getHostAddress());
+        }
+
+        if (prefixLength == bits) {
+            this.addresses.put(address, expiry);
+        } else {
+            Node node = this.root(bytes);
+            for (int i = 0; i < prefixLength; i++) {
+                Node next = bit(bytes, i) ? node.one : node.zero;
+                if (next == null) {
+                    next = new Node();
+                    if (bit(bytes, i)) {
+                        node.one = next;
+                    } else {
+                        node.zero = next;
+                    }
+                }
+                node = next;
+            }
+            if (node.expiry == 0) {
+                this.ranges++;
+            }
+            node.expiry = expiry;
+        }
+
+        if (expiry != PERMANENT) {
+            this.schedule(new Expiry(bytes, prefixLength, expiry));
+        }
+    }
+
+    public synchronized boolean unblock(InetAddress address, int prefixLength) {
+        byte[] bytes = address.getAddress();
+        if (prefixLength == bytes.length * 8) {
+            return this.addresses.remove(address) != null;
+        }
+
+        Node node = this.find(bytes, prefixLength);
+        if (node == null || node.expiry == 0) {
+            return false;
+        }
+        node.expiry = 0;
+        this.ranges--;
+        return true;
+    }
+
+    public boolean isBlocked(InetAddress address, long curTime) {
+        Long expiry = this.addresses.get(address);
+        if (expiry != null && isActive(expiry, curTime)) {
+            return true;
+        }
+        if (this.ranges == 0) {
+            return false;
+        }
+
+        byte[] bytes = address.getAddress();
+        Node node = this.root(bytes);
+        for (int i = 0; node != null; i++) {
+            if (isActive(node.expiry, curTime)) {
+                return true;
+            }
+            if (i == bytes.length * 8) {
+                break;
+            }
+            node = bit(bytes, i) ? node.one : node.zero;
+        }
+        return false;
+    }
+
+    /**
+     * Remove the entries which expired since the last call
+     *
+     * @param curTime current time in milliseconds
+     */
+    public void expire(long curTime) {
+        long second = curTime / 1000;
+        if (second <= this.wheelSecond) {
+            return;
+        }
+
+        synchronized (this) {
+            long from = Math.max(this.wheelSecond + 1, second - WHEEL_MASK);
+            for (long s = from; s <= second; s++) {
+                List<Expiry> slot = this.wheel[(int) (s & WHEEL_MASK)];
+                if (slot == null) {
+                    continue;
+                }
+                Iterator<Expiry> iterator = slot.iterator();
+                while (iterator.hasNext()) {
+                    Expiry entry = iterator.next();
+                    if (entry.expiry <= curTime) {
+                        iterator.remove();
+                        this.remove(entry);
+                    }
+                }
+            }
+            this.wheelSecond = second;
+        }
+    }
+
+    private void schedule(Expiry entry) {
+        // Entries further away than one turn stay in their slot until they are due
+        long second = Math.max(entry.expiry / 1000, this.wheelSecond + 1);
+        int slot = (int) (second & WHEEL_MASK);
+        if (this.wheel[slot] == null) {
+            this.wheel[slot] = new ArrayList<>();
+        }
+        this.wheel[slot].add(entry);
+    }
+
+    private void remove(Expiry entry) {
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(entry.address);
+        } catch (UnknownHostException e) {
+            return;
+        }
+
+        // The entry may have been blocked again with another expiry since
+        if (entry.prefixLength == entry.address.length * 8) {
+            this.addresses.remove(address, entry.expiry);
+        } else {
+            Node node = this.find(entry.address, entry.prefixLength);
+            if (node != null && node.expiry == entry.expiry) {
+                node.expiry = 0;
+                this.ranges--;
+            }
+        }
+    }
+
+    private Node find(byte[] bytes, int prefixLength) {
+        Node node = this.root(bytes);
+        for (int i = 0; i < prefixLength && node != null; i++) {
+            node = bit(bytes, i) ? node.one : node.zero;
+        }
+        return node;
+    }
+
+    /**
+     * Block every entry of a file, one IP address or CIDR range per line. Host names are rejected. Empty lines and everything after # are ignored.
+     *
+     * @param path blocklist file
+     * @param expiry time in milliseconds the entries expire at or {@link #PERMANENT}
+     * @return number of entries
+     * @throws IOException if the file can not be read or contains an invalid entry
+     */
+    public int importFile(Path path, long expiry) throws IOException {
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                int slash = line.indexOf('/');
+                // Only IP literals, a host name would be resolved with a blocking lookup
+                byte[] bytes = NetUtil.createByteArrayFromIpAddressString(slash == -1 ? line : line.substring(0, slash));
+                if (bytes == null) {
+                    throw new IOException("Invalid blocklist entry on line " + lineNumber + ", expected an IP address or CIDR range: " + line);
+                }
+                try {
+                    int prefixLength = slash == -1 ? bytes.length * 8 : Integer.parseInt(line.substring(slash + 1));
+                    this.block(InetAddress.getByAddress(bytes), prefixLength, expiry);
+                    count++;
+                } catch (IllegalArgumentException | UnknownHostException e) {
+                    throw new IOException("Invalid blocklist entry on line " + lineNumber + ": " + line, e);
+                }
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return this.addresses.size() + this.ranges;
+    }
+
+    private Node root(byte[] bytes) {
+        return bytes.length == 4 ? this.root4 : this.root6;
+    }
+
+    private static boolean bit(byte[] bytes, int index) {
+        return (bytes[index >> 3] & (0x80 >> (index & 7))) != 0;
+    }
+
+    private static boolean isActive(long expiry, long curTime) {
+        return expiry == PERMANENT || expiry > curTime;
+    }
+
+    private static class Node {
+
+        private volatile Node zero;
+        private volatile Node one;
+        /**
+         * 0 if the range is not blocked
+         */
+        private volatile long expiry;
+    }
+
+    private static class Expiry {
+
+        private final byte[] address;
+        private final int prefixLength;
+        private final long expiry;
+
+        private Expiry(byte[] address, int prefixLength, long expiry) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.nukkitx.network.raknet.util;
+
+import com.nukkitx.network.util.Preconditions;
+
+/**
+ * Sorted list of disjoint int ranges stored in primitive arrays. Adjacent and overlapping ranges are merged as they
+ * are added, so consecutive sequence numbers take up a single range.
+ * Not thread safe.
+ */
+public class IntRangeList {
+
+    private int[] starts;
+    private int[] ends;
+    /**
+     * Index of the first range which was not removed yet
+     */
+    private int head;
+    private int tail;
+
+    public IntRangeList(int capacity) {
+        capacity = Math.max(capacity, 4);
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+    }
+
+    public void add(int value) {
+        this.add(value, value);
+    }
+
+    public void add(int start, int end) {
+        Preconditions.checkArgument(start <= end, "start is greater than end");
+
+        // Sequence numbers mostly arrive in order, so try to extend the last range first
+        if (this.head < this.tail) {
+            int last = this.tail - 1;
+            if (start > this.ends[last] + 1) {
+                this.append(start, end);
+                return;
+            }
+            if (start >= this.starts[last]) {
+                if (end > this.ends[last]) {
+                    this.ends[last] = end;
+                }
+                return;
+            }
+        } else {
+            this.append(start, end);
+            return;
+        }
+
+        // Out of order, find the first range which ends at or after start - 1
+        int low = this.head;
+        int high = this.tail - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.ends[mid] + 1 < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        if (this.starts[low] > end + 1) {
+            // Not touching any range, insert before it
+            int head = this.head;
+            this.ensureCapacity();
+            low -= head - this.head; // Compacting moves the ranges to the start of the arrays
+            System.arraycopy(this.starts, low, this.starts, low + 1, this.tail - low);
+            System.arraycopy(this.ends, low, this.ends, low + 1, this.tail - low);
+            this.starts[low] = start;
+            this.ends[low] = end;
+            this.tail++;
+            return;
+        }
+
+        // Merge with every range it touches
+        int merged = low;
+        while (merged + 1 < this.tail && this.starts[merged + 1] <= end + 1) {
+            merged++;
+        }
+        this.starts[low] = Math.min(this.starts[low], start);
+        this.ends[low] = Math.max(this.ends[merged], end);
+        int removed = merged - low;
+        if (removed > 0) {
+            System.arraycopy(this.starts, merged + 1, this.starts, low + 1, this.tail - merged - 1);
+            System.arraycopy(this.ends, merged + 1, this.ends, low + 1, this.tail - merged - 1);
+            this.tail -= removed;
+        }
+    }
+
+    private void append(int start, int end) {
+        this.ensureCapacity();
+        this.starts[this.tail] = start;
+        this.ends[this.tail] = end;
+        this.tail++;
+    }
+
+    private void ensureCapacity() {
+        if (this.tail < this.starts.length) {
+            return;
+        }
+
+        int size = this.size();
+        int[] starts = this.starts;
+        int[] ends = this.ends;
+        if (size * 2 > starts.length) {
+            starts = new int[starts.length << 1];
+            ends = new int[ends.length << 1];
+        }
+        // Compact the removed ranges away
+        System.arraycopy(this.starts, this.head, starts, 0, size);
+        System.arraycopy(this.ends, this.head, ends, 0, size);
+        this.starts = starts;
+        this.ends = ends;
+        this.head = 0;
+        this.tail = size;
+    }
+
+    public boolean isEmpty() {
+        return this.head == this.tail;
+    }
+
+    public int size() {
+        return this.tail - this.head;
+    }
+
+    public int firstStart() {
+        return this.starts[this.head];
+    }
+
+    public int firstEnd() {
+        return this.ends[this.head];
+    }
+
+    public void removeFirst() {
+        if (++this.head == this.tail) {
+            this.head = 0;
+            this.tail = 0;
+        }
+    }
+
+    public void clear() {
+        this.head = 0;
+        this.tail = 0;
+    }
+}
@@ -0,0 +1,151 @@
+package com.nukkitx.network.raknet.util;
+
+import com.nukkitx.network.raknet.RakNetUtils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token buckets in a fixed size open addressing table keyed by packed addresses. Buckets refill continuously and are
+ * updated with CAS, so every event loop can use the same table without locks or allocations. When all slots a key
+ * may use are taken, the least recently used one is taken over, so a flood of spoofed addresses can not grow it. The
+ * new key inherits the tokens left in that bucket, so rotating addresses does not earn fresh buckets.
+ */
+public class RateLimiter {
+
+    private static final int PROBES = 8;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    /**
+     * Tokens are stored in 1/256 to keep the fraction of continuous refills
+     */
+    private static final int ONE_TOKEN = 256;
+
+    private final AtomicLongArray keys;
+    /**
+     * Time of the last update in milliseconds since {@link #epoch} and the tokens left
+     */
+    private final AtomicLongArray states;
+    private final int mask;
+    private final long epoch = System.currentTimeMillis();
+    private final int rate;
+    private final long capacity;
+
+    /**
+     * @param slots number of buckets
+     * @param rate tokens added per second
+     * @param burst maximum number of tokens
+     */
+    public RateLimiter(int slots, int rate, int burst) {
+        slots = RakNetUtils.powerOfTwoCeiling(Math.max(slots, PROBES));
+        this.keys = new AtomicLongArray(slots);
+        this.states = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.rate = Math.max(rate, 0);
+        this.capacity = (long) RakNetUtils.clamp(burst, 1, (int) (TOKEN_MASK / ONE_TOKEN)) * ONE_TOKEN;
+    }
+
+    /**
+     * Take a token from the bucket of the key
+     *
+     * @param key key from {@link #key(InetAddress)} or {@link #key(InetSocketAddress)}
+     * @param curTime current time in milliseconds
+     * @return whether a token was available
+     */
+    public boolean tryAcquire(long key, long curTime) {
+        long now = curTime - this.epoch;
+        int start = (int) mix(key) & this.mask;
+
+        while (true) {
+            int victim = start;
+            long victimTime = Long.MAX_VALUE;
+            for (int i = 0; i < PROBES; i++) {
+                int slot = (start + i) & this.mask;
+                long slotKey = this.keys.get(slot);
+                if (slotKey == key) {
+                    return this.acquire(slot, now);
+                }
+                if (slotKey == 0) {
+                    if (this.keys.compareAndSet(slot, 0, key)) {
+                        this.states.set(slot, pack(now, this.capacity - ONE_TOKEN));
+                        return true;
+                    }
+                    if (this.keys.get(slot) == key) {
+                        return this.acquire(slot, now);
+                    }
+                    continue;
+                }
+
+                long time = this.states.get(slot) >>> TOKEN_BITS;
+                if (time < victimTime) {
+                    victimTime = time;
+                    victim = slot;
+                }
+            }
+
+            // Take over the bucket which was used least recently, including the tokens left in it
+            long victimKey = this.keys.get(victim);
+            if (victimKey == key || this.keys.compareAndSet(victim, victimKey, key)) {
+                return this.acquire(victim, now);
+            }
+            // Another thread took the slot first, look again
+        }
+    }
+
+    private boolean acquire(int slot, long now) {
+        while (true) {
+            long state = this.states.get(slot);
+            long time = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+
+            long elapsed = now - time;
+            if (elapsed > 0) {
+                tokens = elapsed >= 1000000 ? this.capacity : Math.min(this.capacity, tokens + elapsed * this.rate * ONE_TOKEN / 1000);
+            } else {
+                // Another thread was ahead with a newer time
+                now = time;
+            }
+
+            if (tokens < ONE_TOKEN) {
+                return false;
+            }
+            if (this.states.compareAndSet(slot, state, pack(now, tokens - ONE_TOKEN))) {
+                return true;
+            }
+        }
+    }
+
+    private static long pack(long time, long tokens) {
+        return (time << TOKEN_BITS) | tokens;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    public static long key(InetAddress address) {
+        return key(address.getAddress(), 0);
+    }
+
+    public static long key(InetSocketAddress address) {
+        return key(address.getAddress().getAddress(), address.getPort() + 1);
+    }
+
+    private static long key(byte[] bytes, int port) {
+        if (bytes.length == 4) {
+            long ip = ((bytes[0] & 0xffL) << 24) | ((bytes[1] & 0xffL) << 16) | ((bytes[2] & 0xffL) << 8) | (bytes[3] & 0xffL);
+            return (1L << 62) | (ip << 17) | port;
+        }
+
+        long hash = port;
+        for (byte b : bytes) {
+            hash = hash * 31 + b;
+            hash = mix(hash);
+        }
+        return hash | Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,195 @@
+package com.nukkitx.network.raknet.util;
+
+import com.nukkitx.network.raknet.RakNetUtils;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Map keyed by socket addresses. IPv4 addresses are packed with the port into one long and kept in an open addressing
+ * table, so a lookup neither hashes an {@link InetSocketAddress} nor allocates. IPv6 addresses go to a side map.
+ * Reads are lock free, changes are synchronized.
+ */
+public class SocketAddressMap<V> {
+
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private volatile Table<V> table = new Table<>(INITIAL_CAPACITY);
+    /**
+     * Slots in use including removed ones, the table is rebuilt when half of it is used
+     */
+    private int usedSlots;
+    private volatile int size4;
+    private final ConcurrentMap<InetSocketAddress, V> map6 = new ConcurrentHashMap<>();
+
+    public V get(InetSocketAddress address) {
+        long key = key(address);
+        if (key == EMPTY) {
+            return this.map6.get(address);
+        }
+
+        Table<V> table = this.table;
+        int mask = table.keys.length() - 1;
+        for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long slotKey = table.keys.get(slot);
+            if (slotKey == key) {
+                V value = table.values.get(slot);
+                // The slot may have been removed and taken by another address in the meantime
+                if (table.keys.get(slot) == key) {
+                    return value;
+                }
+                return this.get(address);
+            }
+            if (slotKey == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the value already mapped to the address or null if the value was added
+     */
+    public synchronized V putIfAbsent(InetSocketAddress address, V value) {
+        long key = key(address);
+        if (key == EMPTY) {
+            return this.map6.putIfAbsent(address, value);
+        }
+
+        Table<V> table = this.table;
+        int mask = table.keys.length() - 1;
+        int free = -1;
+        int slot = (int) mix(key) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            long slotKey = table.keys.get(slot);
+            if (slotKey == key) {
+                return table.values.get(slot);
+            }
+            if (slotKey == REMOVED && free == -1) {
+                free = slot;
+            } else if (slotKey == EMPTY) {
+                break;
+            }
+        }
+
+        if (free == -1) {
+            free = slot;
+            this.usedSlots++;
+        }
+        // The value is set first, so readers never see the key without it
+        table.values.set(free, value);
+        table.keys.set(free, key);
+        this.size4++;
+
+        if (this.usedSlots * 2 > table.keys.length()) {
+            this.rebuild(this.size4 * 4 > table.keys.length() ? table.keys.length() * 2 : table.keys.length());
+        }
+        return null;
+    }
+
+    /**
+     * Remove the address if it is mapped to the value
+     *
+     * @return whether it was removed
+     */
+    public synchronized boolean remove(InetSocketAddress address, V value) {
+        long key = key(address);
+        if (key == EMPTY) {
+            return this.map6.remove(address, value);
+        }
+
+        Table<V> table = this.table;
+        int mask = table.keys.length() - 1;
+        for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long slotKey = table.keys.get(slot);
+            if (slotKey == key) {
+                if (table.values.get(slot) != value) {
+                    return false;
+                }
+                table.keys.set(slot, REMOVED);
+                table.values.set(slot, null);
+                this.size4--;
+                return true;
+            }
+            if (slotKey == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    private void rebuild(int capacity) {
+        Table<V> old = this.table;
+        Table<V> table = new Table<>(capacity);
+        int mask = capacity - 1;
+        int used = 0;
+        for (int i = 0; i < old.keys.length(); i++) {
+            long key = old.keys.get(i);
+            if (key == EMPTY || key == REMOVED) {
+                continue;
+            }
+            int slot = (int) mix(key) & mask;
+            while (table.keys.get(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table.values.set(slot, old.values.get(i));
+            table.keys.set(slot, key);
+            used++;
+        }
+        this.usedSlots = used;
+        // Readers still on the old table see the state from before the rebuild
+        this.table = table;
+    }
+
+    public void forEach(Consumer<? super V> action) {
+        Table<V> table = this.table;
+        for (int i = 0; i < table.values.length(); i++) {
+            V value = table.values.get(i);
+            if (value != null) {
+                action.accept(value);
+            }
+        }
+        this.map6.values().forEach(action);
+    }
+
+    public int size() {
+        return this.size4 + this.map6.size();
+    }
+
+    /**
+     * @return packed IPv4 address and port or {@link #EMPTY} for IPv6 addresses
+     */
+    private static long key(InetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        if (!(inetAddress instanceof Inet4Address)) {
+            return EMPTY;
+        }
+        // The hash code of an IPv4 address is the address itself, getAddress() would copy it
+        return (1L << 48) | ((inetAddress.hashCode() & 0xffffffffL) << 16) | address.getPort();
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static class Table<V> {
+
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<V> values;
+
+        private Table(int capacity) {
+            capacity = RakNetUtils.powerOfTwoCeiling(capacity);
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+}
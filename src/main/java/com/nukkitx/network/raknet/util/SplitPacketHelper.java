@@ -32,9 +32,8 @@ public class SplitPacketHelper extends AbstractReferenceCounted {
             // Duplicate
             return null;
         }
-        this.packets[partIndex] = packet;
         // Retain the packet so it can be reassembled later.
-        packet.retain();
+        this.packets[partIndex] = session.retainForLater(packet);
 
         int sz = 0;
         for (EncapsulatedPacket netPacket : this.packets) {
@@ -0,0 +1,94 @@
+package com.nukkitx.network.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.util.UncheckedBooleanSupplier;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often a channel reads from its socket. Every read allocates one buffer first, so together with the
+ * number of received datagrams this shows how many datagrams a single recvmmsg call returned.
+ */
+public class CountingRecvByteBufAllocator implements RecvByteBufAllocator {
+
+    private final RecvByteBufAllocator allocator;
+    private final LongAdder reads;
+
+    public CountingRecvByteBufAllocator(RecvByteBufAllocator allocator, LongAdder reads) {
+        this.allocator = allocator;
+        this.reads = reads;
+    }
+
+    @Override
+    public Handle newHandle() {
+        return new CountingHandle((ExtendedHandle) this.allocator.newHandle());
+    }
+
+    private class CountingHandle implements ExtendedHandle {
+
+        private final ExtendedHandle handle;
+
+        private CountingHandle(ExtendedHandle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public ByteBuf allocate(ByteBufAllocator alloc) {
+            CountingRecvByteBufAllocator.this.reads.increment();
+            return this.handle.allocate(alloc);
+        }
+
+        @Override
+        public int guess() {
+            return this.handle.guess();
+        }
+
+        @Override
+        public void reset(ChannelConfig config) {
+            this.handle.reset(config);
+        }
+
+        @Override
+        public void incMessagesRead(int numMessages) {
+            this.handle.incMessagesRead(numMessages);
+        }
+
+        @Override
+        public void lastBytesRead(int bytes) {
+            this.handle.lastBytesRead(bytes);
+        }
+
+        @Override
+        public int lastBytesRead() {
+            return this.handle.lastBytesRead();
+        }
+
+        @Override
+        public void attemptedBytesRead(int bytes) {
+            this.handle.attemptedBytesRead(bytes);
+        }
+
+        @Override
+        public int attemptedBytesRead() {
+            return this.handle.attemptedBytesRead();
+        }
+
+        @Override
+        public boolean continueReading() {
+            return this.handle.continueReading();
+        }
+
+        @Override
+        public boolean continueReading(UncheckedBooleanSupplier maybeMoreDataSupplier) {
+            return this.handle.continueReading(maybeMoreDataSupplier);
+        }
+
+        @Override
+        public void readComplete() {
+            this.handle.readComplete();
+        }
+    }
+}
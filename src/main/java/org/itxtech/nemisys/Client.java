@@ -6,6 +6,7 @@ import org.itxtech.nemisys.event.client.ClientAuthEvent;
 import org.itxtech.nemisys.event.client.ClientConnectEvent;
 import org.itxtech.nemisys.event.client.ClientDisconnectEvent;
 import org.itxtech.nemisys.event.client.PluginMsgRecvEvent;
+import org.itxtech.nemisys.network.Broadcaster;
 import org.itxtech.nemisys.network.SynapseInterface;
 import org.itxtech.nemisys.network.protocol.mcpe.BatchPacket;
 import org.itxtech.nemisys.network.protocol.mcpe.DataPacket;
@@ -91,12 +92,15 @@ public class Client {
         switch (packet.pid()) {
             case SynapseInfo.BROADCAST_PACKET:
                 GenericPacket gPacket = new GenericPacket(((BroadcastPacket) packet).payload);
+                gPacket.isEncoded = true;
+                List<Player> recipients = new ArrayList<>();
                 for (UUID uniqueId : ((BroadcastPacket) packet).entries) {
                     Player player = this.players.get(uniqueId);
                     if (player != null) {
-                        player.sendDataPacket(gPacket, ((BroadcastPacket) packet).direct);
+                        recipients.add(player);
                     }
                 }
+                Broadcaster.broadcast(recipients.toArray(new Player[0]), gPacket, ((BroadcastPacket) packet).direct);
                 break;
             case SynapseInfo.HEARTBEAT_PACKET:
                 HeartbeatPacket heartbeatPacket = (HeartbeatPacket) packet;
@@ -166,14 +170,13 @@ public class Client {
                     DataPacket send;
                     if (buffer[0] == (byte) 0xfe) {
                         send = new BatchPacket(buffer, 1);
+                        send.protocol = pl.protocol;
+                        send.decode();
+                        send.isEncoded = true;
                     } else {
-                        send = server.getNetwork().getPacketOrEmpty(buffer[0]);
-                        send.setBuffer(buffer, 1);
+                        send = server.getNetwork().getLazyPacket(pl.protocol, buffer, 0, buffer.length);
                     }
 
-                    send.protocol = pl.protocol;
-                    send.decode();
-                    send.isEncoded = true;
                     pl.addIncomingPacket(send);
                 }
                 break;
@@ -1,5 +1,8 @@
 package org.itxtech.nemisys;
 
+import com.nukkitx.network.raknet.RakNetServerSession;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import lombok.Getter;
 import org.itxtech.nemisys.command.CommandSender;
 import org.itxtech.nemisys.event.TextContainer;
@@ -7,7 +10,11 @@ import org.itxtech.nemisys.event.TranslationContainer;
 import org.itxtech.nemisys.event.player.*;
 import org.itxtech.nemisys.event.server.DataPacketReceiveEvent;
 import org.itxtech.nemisys.event.server.DataPacketSendEvent;
+import org.itxtech.nemisys.network.CompressionPool;
+import org.itxtech.nemisys.network.Network;
+import org.itxtech.nemisys.network.PreparedBatchPacket;
 import org.itxtech.nemisys.network.SourceInterface;
+import org.itxtech.nemisys.network.encryption.EncryptionContext;
 import org.itxtech.nemisys.network.encryption.PrepareEncryptionTask;
 import org.itxtech.nemisys.network.protocol.mcpe.*;
 import org.itxtech.nemisys.network.protocol.mcpe.types.ScoreInfo;
@@ -19,6 +26,7 @@ import org.itxtech.nemisys.permission.PermissionAttachment;
 import org.itxtech.nemisys.permission.PermissionAttachmentInfo;
 import org.itxtech.nemisys.plugin.Plugin;
 import org.itxtech.nemisys.scheduler.AsyncTask;
+import org.itxtech.nemisys.scheduler.PlayerTicker;
 import org.itxtech.nemisys.utils.*;
 
 import javax.crypto.Cipher;
@@ -27,7 +35,7 @@ import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -41,8 +49,7 @@ public class Player implements CommandSender {
     private volatile boolean loginPacketReceived;
     private boolean isFirstTimeLogin = true;
     private final int[] receivedPackets = new int[256];
-    private int batchPackets;
-    private final AtomicBoolean ticking = new AtomicBoolean();
+    private final AtomicInteger batchPackets = new AtomicInteger();
     @Getter
     protected UUID uuid;
     private byte[] cachedLoginPacket;
@@ -55,15 +62,28 @@ public class Player implements CommandSender {
     /**
      * Client protocol version
      */
-    public int protocol = Integer.MAX_VALUE;
+    public volatile int protocol = Integer.MAX_VALUE;
     /**
      * Client RakNet protocol version
      */
     public int raknetProtocol = Integer.MAX_VALUE;
+    /**
+     * RakNet session of the player, null for players not connected through RakNet
+     */
+    public RakNetServerSession raknetSession;
     /**
      * Whether 1.19.30+ client is ready to receive compressed packets
      */
-    public boolean networkSettingsUpdated;
+    public volatile boolean networkSettingsUpdated;
+    /**
+     * Whether the client compresses the batches it sends. Set on the send path right before NetworkSettingsPacket is
+     * handed to the interface, so the network threads decoding batches never see an outdated value.
+     */
+    public volatile boolean inboundCompression;
+    /**
+     * The next batch put to the interface contains NetworkSettingsPacket
+     */
+    private volatile boolean networkSettingsQueued;
     @Getter
     private final SourceInterface interfaz;
     @Getter
@@ -80,16 +100,25 @@ public class Player implements CommandSender {
     private final Queue<DataPacket> synapseIncomingPackets = new ConcurrentLinkedQueue<>();
     private final Queue<DataPacket> synapseOutgoingPackets = new ConcurrentLinkedQueue<>();
     private final Queue<DataPacket> outgoingPacketQueue = new ConcurrentLinkedQueue<>();
-
-    private boolean awaitingEncryptionHandshake;
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    /**
+     * Time the oldest packet in the outgoing queue was queued at, 0 if the queue is empty
+     */
+    private final AtomicLong queuedSince = new AtomicLong();
+    private volatile boolean flushRequested;
     @Getter
-    private Cipher encryptionCipher;
+    private final LatencyHistogram queueDelayHistogram = new LatencyHistogram();
     @Getter
-    private Cipher decryptionCipher;
+    private final CompressionPool.Sequence batchSequence = new CompressionPool.Sequence(this::putBatch, encryption -> this.encryptionContext = encryption);
+
+    private boolean awaitingEncryptionHandshake;
     @Getter
-    private SecretKey encryptionKey;
+    private volatile EncryptionContext encryptionContext;
+    /**
+     * Shard of the player ticker this player is ticked by
+     */
     @Getter
-    private final AtomicLong sentEncryptedPacketCount = new AtomicLong();
+    PlayerTicker.Shard tickerShard;
 
     public Player(SourceInterface interfaz, Long clientID, InetSocketAddress socketAddress) {
         this.server = Server.getInstance();
@@ -107,11 +136,10 @@ public class Player implements CommandSender {
 
             boolean batch = packet instanceof BatchPacket;
             if (batch) {
-                if (++this.batchPackets > Server.batchLimit) {
-                    this.getServer().getLogger().warning(this.name + " sent too many batch packets (count=" + this.batchPackets + ", max=" + Server.batchLimit + ")");
-                    this.close("Too many packets");
-                } else {
+                if (this.countBatchPacket()) {
                     this.getServer().getNetwork().processBatch((BatchPacket) packet, this);
+                } else {
+                    this.close("Too many packets");
                 }
                 return;
             }
@@ -166,7 +194,8 @@ public class Player implements CommandSender {
                     this.protocol = networkSettingsRequest.protocolVersion;
                     NetworkSettingsPacket settingsPacket = new NetworkSettingsPacket();
                     settingsPacket.compressionAlgorithm = Server.useSnappy ? NetworkSettingsPacket.PacketCompressionAlgorithm.SNAPPY : NetworkSettingsPacket.PacketCompressionAlgorithm.ZLIB;
-                    settingsPacket.compressionThreshold = 256;
+                    settingsPacket.compressionThreshold = Math.max(Math.min(Server.compressionThreshold, 65535), 1);
+                    this.networkSettingsQueued = true;
                     this.quickBatch(settingsPacket, true);
                     this.networkSettingsUpdated = true;
                     break;
@@ -221,12 +250,14 @@ public class Player implements CommandSender {
 
                             ServerToClientHandshakePacket handshakePacket = new ServerToClientHandshakePacket();
                             handshakePacket.jwt = this.getHandshakeJwt();
-                            Player.this.sendDataPacket(handshakePacket, true);
+                            EncryptionContext encryption = new EncryptionContext(this.getEncryptionKey(), this.getEncryptionCipher(), this.getDecryptionCipher());
 
                             Player.this.awaitingEncryptionHandshake = true;
-                            Player.this.encryptionKey = this.getEncryptionKey();
-                            Player.this.encryptionCipher = this.getEncryptionCipher();
-                            Player.this.decryptionCipher = this.getDecryptionCipher();
+                            // The handshake is the last plain batch. The session decrypts once it has been sent.
+                            synchronized (Player.this.batchSequence) {
+                                Player.this.sendDataPacket(handshakePacket, true);
+                                Player.this.batchSequence.enableEncryption(encryption);
+                            }
                         }
                     });
                     return;
@@ -365,13 +396,23 @@ public class Player implements CommandSender {
         this.synapseOutgoingPackets.offer(pk);
     }
 
-    public boolean canTick() {
-        return !this.ticking.get();
+    /**
+     * Count a batch received from the player. This is called from the network threads as well.
+     *
+     * @return false if the player sent too many batches
+     */
+    public boolean countBatchPacket() {
+        int count = this.batchPackets.incrementAndGet();
+        if (count > Server.batchLimit) {
+            if (count == Server.batchLimit + 1) {
+                this.getServer().getLogger().warning(this.name + " sent too many batch packets (count=" + count + ", max=" + Server.batchLimit + ")");
+            }
+            return false;
+        }
+        return true;
     }
 
     public void onUpdate(long currentTick) {
-        ticking.set(true);
-
         // To Synapse downstream
         while (!synapseOutgoingPackets.isEmpty()) {
             handleDataPacket(synapseOutgoingPackets.poll());
@@ -382,27 +423,47 @@ public class Player implements CommandSender {
             handleIncomingPacket(synapseIncomingPackets.poll());
         }
 
-        // To player
-        if (currentTick % 5 == 0) { // Queue packets to be batched together
-            if (!this.outgoingPacketQueue.isEmpty()) {
-                List<DataPacket> toBatch = new ArrayList<>();
-                DataPacket packet;
-                while ((packet = this.outgoingPacketQueue.poll()) != null) {
-                    toBatch.add(packet);
-                }
-                server.batchPackets(this, toBatch);
-            }
+        // To player, queued packets are batched together until the flush deadline
+        long queuedSince = this.queuedSince.get();
+        if (this.flushRequested || (queuedSince != 0 && System.nanoTime() - queuedSince >= Server.batchFlushDeadline * 1000000L)) {
+            this.flushOutgoingQueue();
         }
 
         // Clear packet counters
         if (currentTick % 100 == 0) {
-            this.batchPackets = 0;
+            this.batchPackets.set(0);
             for (int i = 0; i < 256; i++) {
                 receivedPackets[i] = 0;
             }
         }
+    }
+
+    private void flushOutgoingQueue() {
+        this.flushRequested = false;
+        long queuedSince = this.queuedSince.getAndSet(0);
+        if (!this.outgoingPacketQueue.isEmpty()) {
+            if (queuedSince != 0) {
+                this.queueDelayHistogram.record(System.nanoTime() - queuedSince);
+            }
 
-        ticking.set(false);
+            List<DataPacket> toBatch = new ArrayList<>();
+            int bytes = 0;
+            DataPacket packet;
+            while ((packet = this.outgoingPacketQueue.poll()) != null) {
+                bytes += packet.getEncodedSize();
+                if (packet instanceof PreparedBatchPacket) {
+                    if (!toBatch.isEmpty()) {
+                        server.batchPackets(this, toBatch);
+                        toBatch = new ArrayList<>();
+                    }
+                    this.batchSequence.send(((PreparedBatchPacket) packet).payload, true);
+                } else {
+                    toBatch.add(packet);
+                }
+            }
+            this.queuedBytes.addAndGet(-bytes);
+            server.batchPackets(this, toBatch);
+        }
     }
 
     public void despawnEntities() {
@@ -497,8 +558,92 @@ public class Player implements CommandSender {
         if (direct || this.protocol < 419 || pk instanceof BatchPacket) {
             this.interfaz.putPacket(this, pk, false, true); // should probably not be immediate
         } else {
-            this.outgoingPacketQueue.offer(pk);
+            pk.protocol = this.protocol;
+            pk.tryEncode();
+            this.queuePacket(pk, Server.immediateFlushPackets[pk.pid() & 0xff]);
+        }
+    }
+
+    /**
+     * Send a batch compressed for a broadcast
+     *
+     * @param batch batch shared with other players, released once sent
+     * @param direct whether to skip the outgoing queue
+     */
+    public void sendPreparedBatch(PreparedBatchPacket batch, boolean direct) {
+        if (this.closed) {
+            batch.payload.release();
+        } else if (direct || this.protocol < 419) {
+            this.batchSequence.send(batch.payload, true);
+        } else {
+            // The batch is already compressed, so there is nothing to wait for
+            this.queuePacket(batch, true);
+            if (this.closed) {
+                // close() may have drained the queue before the batch was added
+                this.releaseQueuedBatches();
+            }
+        }
+    }
+
+    private void queuePacket(DataPacket pk, boolean flush) {
+        this.outgoingPacketQueue.offer(pk);
+        this.queuedSince.compareAndSet(0, System.nanoTime());
+        if (this.queuedBytes.addAndGet(pk.getEncodedSize()) >= Server.batchFlushThreshold || flush) {
+            if (Thread.currentThread() == this.tickerShard) {
+                this.flushOutgoingQueue();
+            } else {
+                this.flushRequested = true; // Batches are only built by the ticker to keep them in order
+            }
+        }
+    }
+
+    /**
+     * Shared batches are encrypted in place, so encrypted players need their own copy
+     */
+    private static ByteBuf ownBatch(ByteBuf payload) {
+        ByteBuf copy = PooledByteBufAllocator.DEFAULT.heapBuffer(BatchPacket.HEADROOM + payload.readableBytes() + 8);
+        copy.writerIndex(BatchPacket.HEADROOM);
+        copy.readerIndex(BatchPacket.HEADROOM);
+        copy.writeBytes(payload);
+        payload.release();
+        return copy;
+    }
+
+    /**
+     * Send a batch compressed by {@link Server#compressBatch(Player, BinaryStream, boolean)}. The batch is sent
+     * after batches which are still being compressed by the compression pool.
+     *
+     * @param payload compressed batch, released once sent
+     */
+    public void sendBatch(ByteBuf payload) {
+        this.batchSequence.send(payload, false);
+    }
+
+    private void putBatch(ByteBuf payload, EncryptionContext encryption, boolean shared) {
+        if (encryption != null && shared) {
+            payload = ownBatch(payload);
+        }
+        if (this.networkSettingsQueued) {
+            // The client compresses everything it sends once it received the settings
+            this.networkSettingsQueued = false;
+            this.inboundCompression = true;
         }
+        this.interfaz.putBatch(this, payload, encryption, true);
+    }
+
+    public Cipher getEncryptionCipher() {
+        EncryptionContext context = this.encryptionContext;
+        return context == null ? null : context.getEncryptionCipher();
+    }
+
+    public Cipher getDecryptionCipher() {
+        EncryptionContext context = this.encryptionContext;
+        return context == null ? null : context.getDecryptionCipher();
+    }
+
+    public SecretKey getEncryptionKey() {
+        EncryptionContext context = this.encryptionContext;
+        return context == null ? null : context.getKey();
     }
 
     public int getPing() {
@@ -545,6 +690,8 @@ public class Player implements CommandSender {
             this.interfaz.close(this, notify ? reason : "");
             this.getServer().removePlayer(this);
 
+            this.releaseQueuedBatches();
+
             try {
                 this.cachedLoginPacket = null;
                 this.scoreboards.clear();
@@ -556,33 +703,52 @@ public class Player implements CommandSender {
         }
     }
 
+    private void releaseQueuedBatches() {
+        DataPacket queued;
+        while ((queued = this.outgoingPacketQueue.poll()) != null) {
+            if (queued instanceof PreparedBatchPacket) {
+                ((PreparedBatchPacket) queued).payload.release();
+            }
+        }
+    }
+
     protected void processIncomingBatch(BatchPacket packet) {
         try {
+            boolean noCompression = packet.noCompression || (!this.networkSettingsUpdated && this.raknetProtocol >= 11);
+            boolean snappy = this.client.snappySupport == 0x02 || (this.client.snappySupport == 0x01 && this.raknetProtocol >= 11);
             byte[] decompressedPayload;
-            if (packet.noCompression || (!this.networkSettingsUpdated && this.raknetProtocol >= 11)) {
+            if (noCompression) {
                 decompressedPayload = packet.payload;
-            } else if (this.client.snappySupport == 0x02 || (this.client.snappySupport == 0x01 && this.raknetProtocol >= 11)) {
+            } else if (snappy) {
                 decompressedPayload = SnappyCompression.rawDecompress(packet.payload, -1);
             } else if (this.raknetProtocol >= 10) {
                 decompressedPayload = Zlib.INSTANCE.inflateRaw(packet.payload, -1);
             } else {
                 decompressedPayload = Zlib.INSTANCE.inflate(packet.payload, -1);
             }
+
+            // Forward the downstream's compressed payload as is when nothing in it has to be tracked
+            if (!noCompression && this.canPassthrough(snappy) && !containsTrackedPackets(decompressedPayload)) {
+                this.flushOutgoingQueue(); // Keep the order of already queued packets
+                BatchPacket passthrough = new BatchPacket();
+                passthrough.payload = packet.payload;
+                this.sendDataPacket(passthrough, true);
+                return;
+            }
+
+            Network network = this.getServer().getNetwork();
             BinaryStream buffer = new BinaryStream(decompressedPayload);
             while (!buffer.feof()) {
                 try {
-                    byte[] data = buffer.getByteArray();
-                    if (data.length == 0) {
+                    int length = (int) buffer.getUnsignedVarInt();
+                    if (length <= 0 || length > decompressedPayload.length - buffer.offset) {
                         this.getServer().getLogger().warning("Batch buffer empty");
                         this.close("Failed to process incoming packet");
                         return;
                     }
-                    DataPacket pk = getServer().getNetwork().getPacketOrEmpty(data[0]);
-                    pk.setBuffer(data, 1);
-                    pk.protocol = this.protocol;
-                    pk.decode();
-                    pk.isEncoded = true;
-                    handleIncomingPacket(pk);
+                    int offset = buffer.offset;
+                    buffer.offset += length;
+                    handleIncomingPacket(network.getLazyPacket(this.protocol, decompressedPayload, offset, length));
                 } catch (Exception ex) {
                     this.getServer().getLogger().warning("Failed to process incoming packet", ex);
                 }
@@ -592,6 +758,38 @@ public class Player implements CommandSender {
         }
     }
 
+    /**
+     * Whether a batch compressed by the downstream server can be sent to this player without recompressing it
+     *
+     * @param snappy whether the downstream batch is compressed with Snappy
+     * @return the downstream compression matches the one negotiated with the player
+     */
+    private boolean canPassthrough(boolean snappy) {
+        return Server.compressedPassthrough && !Server.callDataPkSendEv && snappy == (Server.useSnappy && this.raknetProtocol >= 11);
+    }
+
+    /**
+     * Check whether a decompressed batch contains packets handleIncomingPacket needs to see
+     *
+     * @param payload decompressed batch payload
+     * @return batch contains packets which have to be decoded, or could not be read
+     */
+    private boolean containsTrackedPackets(byte[] payload) {
+        Network network = this.getServer().getNetwork();
+        BinaryStream stream = new BinaryStream(payload);
+        while (!stream.feof()) {
+            int length = (int) stream.getUnsignedVarInt();
+            if (length <= 0 || length > payload.length - stream.offset) {
+                return true; // Let the decoding path handle malformed batches
+            }
+            if (network.isDecodeRequired(payload[stream.offset])) {
+                return true;
+            }
+            stream.offset += length;
+        }
+        return false;
+    }
+
     public void sendMessage(String message) {
         TextPacket pk = new TextPacket();
         pk.type = TextPacket.TYPE_RAW;
@@ -754,26 +952,13 @@ public class Player implements CommandSender {
             }
         }
         pk.tryEncode();
-        byte[] buf = pk.getBuffer();
-        BinaryStream stream = new BinaryStream(5 + buf.length);
-        stream.putUnsignedVarInt(buf.length);
-        stream.put(buf);
+        BinaryStream stream = new BinaryStream();
+        pk.writeTo(stream);
         try {
-            byte[] bytes = stream.getBuffer();
-            BatchPacket batched = new BatchPacket();
-            if (noCompression) {
-                batched.payload = bytes;
-            } else if (Server.useSnappy && this.raknetProtocol >= 11) {
-                batched.payload = SnappyCompression.rawCompress(bytes);
-            } else if (this.raknetProtocol >= 10) {
-                batched.payload = Zlib.INSTANCE.deflateRaw(bytes, Server.compressionLevel);
-            } else {
-                batched.payload = Zlib.INSTANCE.deflate(bytes, Server.compressionLevel);
-            }
             if (Nemisys.DEBUG > 2) {
                 this.server.getLogger().debug("[" + this.protocol + "/" + this.raknetProtocol + "] Outbound " + (this.name.isEmpty() ? this.getAddress() : this.name) + ": " + pk.getClass().getSimpleName() + " (pid=" + pk.pid() + ")");
             }
-            this.interfaz.putPacket(this, batched, false, true);
+            this.server.getCompressionPool().send(this, stream, noCompression);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
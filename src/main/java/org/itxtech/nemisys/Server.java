@@ -1,15 +1,17 @@
 package org.itxtech.nemisys;
 
 import com.google.common.hash.Hashing;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import lombok.Getter;
-import lombok.Setter;
 import org.itxtech.nemisys.command.*;
 import org.itxtech.nemisys.event.HandlerList;
 import org.itxtech.nemisys.event.server.QueryRegenerateEvent;
 import org.itxtech.nemisys.lang.BaseLang;
 import org.itxtech.nemisys.math.NemisysMath;
+import org.itxtech.nemisys.network.Broadcaster;
+import org.itxtech.nemisys.network.CompressionPool;
 import org.itxtech.nemisys.network.Network;
 import org.itxtech.nemisys.network.RakNetInterface;
 import org.itxtech.nemisys.network.SourceInterface;
@@ -20,12 +22,14 @@ import org.itxtech.nemisys.permission.DefaultPermissions;
 import org.itxtech.nemisys.plugin.JavaPluginLoader;
 import org.itxtech.nemisys.plugin.Plugin;
 import org.itxtech.nemisys.plugin.PluginManager;
+import org.itxtech.nemisys.scheduler.PlayerTicker;
 import org.itxtech.nemisys.scheduler.ServerScheduler;
 import org.itxtech.nemisys.synapse.Synapse;
 import org.itxtech.nemisys.synapse.SynapseEntry;
 import org.itxtech.nemisys.utils.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -81,10 +85,15 @@ public class Server {
     public static int packetLimit;
     public static int batchLimit;
     public static int maxSessions;
-    static boolean callDataPkSendEv;
+    public static boolean callDataPkSendEv;
     static boolean callDataPkReceiveEv;
     public static boolean plusOnePlayerCount;
     public static boolean useSnappy;
+    public static boolean compressedPassthrough;
+    public static boolean verifyEncryptionChecksum;
+    public static int batchFlushThreshold;
+    public static int batchFlushDeadline;
+    public static final boolean[] immediateFlushPackets = new boolean[256];
     private final String queryVersion;
     @SuppressWarnings("unused")
     public int uptime;
@@ -92,13 +101,12 @@ public class Server {
     private final Thread currentThread;
     private final String synapsePassword;
 
-    @Getter
-    @Setter
-    private int playersPerThread;
-
     private static final Gson GSON = new Gson();
 
-    private final ThreadPoolExecutor playerTicker;
+    @Getter
+    private final PlayerTicker playerTicker;
+    @Getter
+    private final CompressionPool compressionPool;
 
     public Server(MainLogger logger, final String filePath, String dataPath, String pluginPath) {
         instance = this;
@@ -141,8 +149,19 @@ public class Server {
             }
         }
 
-        this.playerTicker = new ThreadPoolExecutor((int) threads, (int) threads,
-                1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat("Player Ticker - #%d").setDaemon(true).build());
+        this.playerTicker = new PlayerTicker(this, (int) threads);
+
+        Object compressionThreads = this.getConfig("compression-threads", "auto");
+        if (!(compressionThreads instanceof Integer)) {
+            try {
+                compressionThreads = Integer.valueOf((String) compressionThreads);
+            } catch (Exception e) {
+                compressionThreads = Math.max(Runtime.getRuntime().availableProcessors() / 2, 1);
+            }
+        }
+
+        this.compressionPool = new CompressionPool(Math.max((int) compressionThreads, 0),
+                this.getPropertyInt("compression-queue-size", 1024), this.getPropertyInt("async-compression-threshold", 65536));
 
         this.synapsePassword = Hashing.md5().hashBytes(this.getPropertyString("password", "must16keyslength").getBytes(StandardCharsets.UTF_8)).toString();
         compressionLevel = Math.max(Math.min(this.getPropertyInt("compression-level", 6), 9), 0);
@@ -160,6 +179,19 @@ public class Server {
         batchLimit = this.getPropertyInt("batch-limit", 500);
         maxSessions = this.getPropertyInt("max-sessions", 0);
         useSnappy = this.getPropertyBoolean("use-snappy-compression", false);
+        compressedPassthrough = this.getPropertyBoolean("compressed-passthrough", true);
+        verifyEncryptionChecksum = this.getPropertyBoolean("verify-encryption-checksum", false);
+        batchFlushThreshold = Math.max(this.getPropertyInt("batch-flush-threshold", 4096), 0);
+        batchFlushDeadline = Math.max(this.getPropertyInt("batch-flush-deadline", 20), 0);
+        for (String id : this.getPropertyString("batch-flush-immediate-packets", "0x02,0x05,0x09,0x73").split(",")) {
+            if (!id.trim().isEmpty()) {
+                try {
+                    immediateFlushPackets[Integer.decode(id.trim()) & 0xff] = true;
+                } catch (NumberFormatException e) {
+                    this.logger.warning("Invalid packet id in batch-flush-immediate-packets: " + id);
+                }
+            }
+        }
 
         Nemisys.DEBUG = this.getPropertyInt("debug", 1);
         this.logger.setLogDebug(Nemisys.DEBUG > 1);
@@ -211,12 +243,7 @@ public class Server {
     }
 
     public static void broadcastPacket(Player[] players, DataPacket packet) {
-        for (Player player : players) {
-            DataPacket pk = packet.clone();
-            pk.protocol = player.protocol;
-            pk.tryEncode();
-            player.sendDataPacket(packet);
-        }
+        Broadcaster.broadcast(players, packet, false);
     }
 
     public void addClient(Client client) {
@@ -373,6 +400,10 @@ public class Server {
             }
             this.synapseInterface.getInterface().shutdown();
 
+            this.getLogger().debug("Stopping player ticker...");
+            this.playerTicker.shutdown();
+            this.compressionPool.shutdown();
+
             this.getLogger().debug("Closing console...");
             this.console.shutdown();
         } catch (Exception e) {
@@ -410,6 +441,7 @@ public class Server {
 
     public void addPlayer(InetSocketAddress socketAddress, Player player) {
         this.players.put(socketAddress, player);
+        player.tickerShard = this.playerTicker.add(player);
     }
 
     public void addOnlinePlayer(UUID uuid, Player player) {
@@ -430,13 +462,7 @@ public class Server {
         this.synapseInterface.process();
         this.scheduler.mainThreadHeartbeat(this.tickCounter);
 
-        for (Player player : this.players.values()) {
-            playerTicker.execute(() -> {
-                if (player.canTick()) {
-                    player.onUpdate(this.tickCounter);
-                }
-            });
-        }
+        this.playerTicker.tick(this.tickCounter);
 
         for (Client client : this.clients.values()) {
             client.onUpdate(this.tickCounter);
@@ -644,6 +670,8 @@ public class Server {
             this.playersUUIDs.remove(player.getUuid());
         }
 
+        this.playerTicker.remove(player);
+
         for (InetSocketAddress socketAddress : this.players.keySet()) {
             Player p = this.players.get(socketAddress);
             if (player == p) {
@@ -755,10 +783,8 @@ public class Server {
         }
         packet.protocol = player.protocol;
         packet.tryEncode();
-        byte[] buf = packet.getBuffer();
-        BinaryStream batched = new BinaryStream(5 + buf.length);
-        batched.putUnsignedVarInt(buf.length);
-        batched.put(buf);
+        BinaryStream batched = new BinaryStream();
+        packet.writeTo(batched);
 
         batchCommon(player, batched);
     }
@@ -775,9 +801,7 @@ public class Server {
             }
             packet.protocol = player.protocol;
             packet.tryEncode();
-            byte[] buf = packet.getBuffer();
-            batched.putUnsignedVarInt(buf.length);
-            batched.put(buf);
+            packet.writeTo(batched);
         }
 
         batchCommon(player, batched);
@@ -786,22 +810,58 @@ public class Server {
     private void batchCommon(Player player, BinaryStream batched) {
         if (!player.closed) {
             try {
-                byte[] bytes = batched.getBuffer();
-                BatchPacket pk = new BatchPacket();
-                if (Server.useSnappy && player.raknetProtocol >= 11) {
-                    pk.payload = SnappyCompression.rawCompress(bytes);
-                } else if (player.raknetProtocol >= 10) {
-                    pk.payload = Zlib.INSTANCE.deflateRaw(bytes, compressionLevel);
-                } else {
-                    pk.payload = Zlib.INSTANCE.deflate(bytes, compressionLevel);
-                }
-                player.sendDataPacket(pk, true);
+                this.compressionPool.send(player, batched, false);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    /**
+     * Compress a batch into a pooled buffer. Clients which negotiated the compression with NetworkSettingsPacket
+     * get the compression prefix in front of the data, and batches below the compression threshold are not
+     * compressed for them. The packet id is written in front of the reader index, so it is sent without copying.
+     *
+     * @param player player the batch is sent to
+     * @param batched framed packets
+     * @param noCompression whether to send the batch uncompressed
+     * @return buffer containing the compressed batch, to be released by the receiver
+     */
+    public static ByteBuf compressBatch(Player player, BinaryStream batched, boolean noCompression) throws IOException {
+        byte[] data = batched.getBufferUnsafe();
+        int length = batched.getCount();
+        boolean prefixed = player.protocol >= 649 && player.networkSettingsUpdated;
+        if (prefixed && length < compressionThreshold) {
+            noCompression = true;
+        }
+
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.heapBuffer(BatchPacket.HEADROOM + length + 64);
+        payload.writerIndex(BatchPacket.HEADROOM);
+        payload.readerIndex(BatchPacket.HEADROOM);
+        try {
+            if (prefixed) {
+                payload.setByte(payload.readerIndex() - 1, noCompression ? 0xff : useSnappy ? 0x01 : 0x00);
+                payload.readerIndex(payload.readerIndex() - 1);
+            }
+            // Written once here, the payload may be shared by the players of a broadcast afterwards
+            payload.setByte(payload.readerIndex() - 1, 0xfe);
+
+            if (noCompression) {
+                payload.writeBytes(data, 0, length);
+            } else if (Server.useSnappy && player.raknetProtocol >= 11) {
+                SnappyCompression.rawCompress(data, 0, length, payload);
+            } else if (player.raknetProtocol >= 10) {
+                Zlib.INSTANCE.deflateRaw(data, 0, length, compressionLevel, payload);
+            } else {
+                Zlib.INSTANCE.deflate(data, 0, length, compressionLevel, payload);
+            }
+            return payload;
+        } catch (Throwable t) {
+            payload.release();
+            throw t;
+        }
+    }
+
     public Client getFallbackClient() {
         List<Client> list = new ArrayList<>();
         for (Client c : clients.values()) {
@@ -839,6 +899,9 @@ public class Server {
             put("password", "must16keyslength");
             put("async-workers", "auto");
             put("player-threads", "auto");
+            put("compression-threads", "auto");
+            put("compression-queue-size", 1024);
+            put("async-compression-threshold", 65536);
             put("max-players", 1000);
             put("plus-one-max-count", true);
             put("debug", 1);
@@ -853,10 +916,29 @@ public class Server {
             put("call-data-pk-receive-ev", false);
             put("min-mtu", 576);
             put("max-mtu", 1400);
+            put("raknet-congestion-control", "sliding-window");
+            put("raknet-receive-batch-size", 32);
+            put("raknet-receive-datagram-size", 1500);
+            put("raknet-udp-gro", false);
+            put("raknet-udp-gso", true);
+            put("raknet-handshake-cookies", false);
+            put("raknet-leak-detection", false);
+            put("raknet-ping-rate", 0);
+            put("raknet-ping-burst", 0);
+            put("raknet-connect-rate", 0);
+            put("raknet-connect-burst", 0);
+            put("raknet-datagram-rate", 0);
+            put("raknet-datagram-burst", 0);
+            put("blocklist-file", "");
             put("packet-limit", 1300);
             put("batch-limit", 500);
             put("max-sessions", 0);
             put("use-snappy-compression", false);
+            put("compressed-passthrough", true);
+            put("verify-encryption-checksum", false);
+            put("batch-flush-threshold", 4096);
+            put("batch-flush-deadline", 20);
+            put("batch-flush-immediate-packets", "0x02,0x05,0x09,0x73");
         }
     }
 }
@@ -1,9 +1,17 @@
 package org.itxtech.nemisys.command.defaults;
 
+import com.nukkitx.network.raknet.RakNetConstants;
+import com.nukkitx.network.raknet.RakNetServer;
 import org.itxtech.nemisys.Nemisys;
+import org.itxtech.nemisys.Player;
 import org.itxtech.nemisys.Server;
 import org.itxtech.nemisys.command.CommandSender;
 import org.itxtech.nemisys.math.NemisysMath;
+import org.itxtech.nemisys.network.CompressionPool;
+import org.itxtech.nemisys.network.RakNetInterface;
+import org.itxtech.nemisys.network.SourceInterface;
+import org.itxtech.nemisys.scheduler.PlayerTicker;
+import org.itxtech.nemisys.utils.LatencyHistogram;
 import org.itxtech.nemisys.utils.TextFormat;
 
 /**
@@ -67,6 +75,45 @@ public class StatusCommand extends VanillaCommand {
 
         sender.sendMessage(TextFormat.GOLD + "Thread count: " + TextFormat.GREEN + Thread.getAllStackTraces().size());
 
+        for (PlayerTicker.Shard shard : server.getPlayerTicker().getShards()) {
+            double load = shard.getAverageTickNanos() / 100000; // 10 ms per tick
+            String loadColor = load > 80 ? "" + TextFormat.RED : load > 50 ? "" + TextFormat.GOLD : "" + TextFormat.GREEN;
+            sender.sendMessage(TextFormat.GOLD + "Player ticker #" + shard.getShardId() + ": " +
+                    TextFormat.GREEN + shard.getPlayerCount() + " players, " +
+                    loadColor + NemisysMath.round(load, 2) + "% load" + TextFormat.GREEN + ", " +
+                    shard.getSkippedTicks() + " skipped ticks");
+        }
+
+        LatencyHistogram queueDelay = new LatencyHistogram();
+        for (Player player : server.getOnlinePlayers().values()) {
+            queueDelay.add(player.getQueueDelayHistogram());
+        }
+        sender.sendMessage(TextFormat.GOLD + "Batch queue delay: " + TextFormat.GREEN + "p50 < " + queueDelay.getPercentile(0.5) + " ms, " +
+                "p99 < " + queueDelay.getPercentile(0.99) + " ms (" + queueDelay.getTotalCount() + " batches)");
+
+        CompressionPool compressionPool = server.getCompressionPool();
+        sender.sendMessage(TextFormat.GOLD + "Compression pool: " + TextFormat.GREEN + compressionPool.getQueueDepth() + "/" + compressionPool.getQueueSize() + " queued, " +
+                compressionPool.getAsyncBatches() + " async, " + compressionPool.getRejectedBatches() + " rejected, " +
+                "wait p99 < " + compressionPool.getQueueLatency().getPercentile(0.99) + " ms, " +
+                "compression p99 < " + compressionPool.getCompressionLatency().getPercentile(0.99) + " ms");
+
+        for (SourceInterface interfaz : server.getNetwork().getInterfaces()) {
+            if (interfaz instanceof RakNetInterface) {
+                RakNetServer raknet = ((RakNetInterface) interfaz).getRakNet();
+                long datagrams = raknet.getReceivedDatagrams();
+                long reads = raknet.getReceiveCalls();
+                sender.sendMessage(TextFormat.GOLD + "RakNet receive: " + TextFormat.GREEN + datagrams + " datagrams in " + reads + " reads (" +
+                        NemisysMath.round(reads == 0 ? 0 : (double) datagrams / reads, 2) + " per read)");
+                sender.sendMessage(TextFormat.GOLD + "RakNet blocklist: " + TextFormat.GREEN + raknet.getBlocklist().size() + " entries");
+                if (RakNetConstants.HANDSHAKE_COOKIES) {
+                    long replies = raknet.getCookieReplies();
+                    long verified = raknet.getVerifiedCookies();
+                    sender.sendMessage(TextFormat.GOLD + "RakNet cookies: " + TextFormat.GREEN + replies + " replies, " + verified + " verified, " +
+                            raknet.getRejectedCookies() + " rejected, " + Math.max(replies - verified, 0) + " sessions avoided");
+                }
+            }
+        }
+
 
         Runtime runtime = Runtime.getRuntime();
         double totalMB = NemisysMath.round(((double) runtime.totalMemory()) / 1024 / 1024, 2);
@@ -15,6 +15,27 @@ public interface AdvancedSourceInterface extends SourceInterface {
 
     void blockAddress(InetAddress address, int timeout);
 
+    /**
+     * Block a CIDR range permanently. Interfaces which can not block ranges only block single addresses.
+     *
+     * @param address any address in the range
+     * @param prefixLength number of leading bits of the range
+     */
+    default void blockRange(InetAddress address, int prefixLength) {
+        if (prefixLength == address.getAddress().length * 8) {
+            this.blockAddress(address);
+        }
+    }
+
+    default void blockRange(InetAddress address, int prefixLength, int timeout) {
+        if (prefixLength == address.getAddress().length * 8) {
+            this.blockAddress(address, timeout);
+        }
+    }
+
+    default void unblockRange(InetAddress address, int prefixLength) {
+    }
+
     void setNetwork(Network network);
 
     void sendRawPacket(InetSocketAddress socketAddress, ByteBuf payload);
@@ -0,0 +1,73 @@
+package org.itxtech.nemisys.network;
+
+import io.netty.buffer.ByteBuf;
+import org.itxtech.nemisys.Player;
+import org.itxtech.nemisys.Server;
+import org.itxtech.nemisys.network.protocol.mcpe.DataPacket;
+import org.itxtech.nemisys.utils.BinaryStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends a packet to many players. The players are grouped by everything the batch depends on, so the packet is
+ * encoded once per protocol and compressed once per group instead of once per player.
+ */
+public class Broadcaster {
+
+    public static void broadcast(Player[] players, DataPacket packet, boolean direct) {
+        if (Server.callDataPkSendEv) {
+            // Plugins may modify or cancel the packet for each player
+            for (Player player : players) {
+                player.sendDataPacket(packet, direct);
+            }
+            return;
+        }
+
+        Map<Long, List<Player>> groups = new HashMap<>();
+        for (Player player : players) {
+            if (player.closed) {
+                continue;
+            }
+            // The compression algorithm follows from the RakNet protocol
+            long key = ((long) player.protocol << 32) | ((long) (player.raknetProtocol & 0xffff) << 1) | (player.networkSettingsUpdated ? 1 : 0);
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(player);
+        }
+
+        Map<Integer, BinaryStream> frames = new HashMap<>();
+        for (List<Player> group : groups.values()) {
+            Player first = group.get(0);
+            BinaryStream batched = frames.computeIfAbsent(first.protocol, protocol -> frame(packet, protocol));
+
+            ByteBuf payload;
+            try {
+                payload = Server.compressBatch(first, batched, false);
+            } catch (Exception e) {
+                Server.getInstance().getLogger().error("Failed to compress broadcast packet " + packet.getClass().getSimpleName(), e);
+                continue;
+            }
+
+            try {
+                for (Player player : group) {
+                    player.sendPreparedBatch(new PreparedBatchPacket(payload.retainedDuplicate()), direct);
+                }
+            } finally {
+                payload.release();
+            }
+        }
+    }
+
+    private static BinaryStream frame(DataPacket packet, int protocol) {
+        DataPacket pk = packet;
+        if (!packet.isEncoded) {
+            pk = packet.clone();
+            pk.protocol = protocol;
+            pk.tryEncode();
+        }
+        BinaryStream batched = new BinaryStream();
+        pk.writeTo(batched);
+        return batched;
+    }
+}
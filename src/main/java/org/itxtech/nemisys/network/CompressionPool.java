@@ -0,0 +1,228 @@
+package org.itxtech.nemisys.network;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import org.itxtech.nemisys.Player;
+import org.itxtech.nemisys.Server;
+import org.itxtech.nemisys.network.encryption.EncryptionContext;
+import org.itxtech.nemisys.utils.BinaryStream;
+import org.itxtech.nemisys.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Compresses large batches on a bounded pool of workers so a burst sent to one player does not stall the other
+ * players on the same ticker. Small batches are compressed inline. Batches are sent to each player in the order
+ * they were submitted, whichever thread finishes first.
+ */
+public class CompressionPool {
+
+    private final ThreadPoolExecutor executor;
+    private final int queueSize;
+    private final int asyncThreshold;
+
+    @Getter
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    @Getter
+    private final LatencyHistogram compressionLatency = new LatencyHistogram();
+    private final AtomicLong asyncBatches = new AtomicLong();
+    private final AtomicLong rejectedBatches = new AtomicLong();
+
+    /**
+     * @param threads number of workers, 0 compresses everything inline
+     * @param queueSize maximum number of batches waiting for a worker, batches are compressed inline when it is full
+     * @param asyncThreshold minimum size of the uncompressed batch to compress it on a worker
+     */
+    public CompressionPool(int threads, int queueSize, int asyncThreshold) {
+        this.queueSize = queueSize;
+        this.asyncThreshold = asyncThreshold;
+        if (threads > 0) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+                    new ThreadFactoryBuilder().setNameFormat("Compression Worker - #%d").setDaemon(true).build());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Compress a batch and send it to the player
+     *
+     * @param player player
+     * @param batched framed packets, must not be modified afterwards
+     * @param noCompression whether to send the batch uncompressed
+     */
+    public void send(Player player, BinaryStream batched, boolean noCompression) throws IOException {
+        if (this.executor == null || noCompression || batched.getCount() < this.asyncThreshold) {
+            player.sendBatch(this.compress(player, batched, noCompression));
+            return;
+        }
+
+        Sequence sequence = player.getBatchSequence();
+        Slot slot = sequence.reserve();
+        long submitted = System.nanoTime();
+        try {
+            this.executor.execute(() -> {
+                this.queueLatency.record(System.nanoTime() - submitted);
+                ByteBuf payload = null;
+                try {
+                    payload = this.compress(player, batched, false);
+                } catch (Throwable t) {
+                    Server.getInstance().getLogger().error("Failed to compress batch for " + player.getName(), t);
+                } finally {
+                    sequence.complete(slot, payload);
+                }
+            });
+            this.asyncBatches.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            this.rejectedBatches.incrementAndGet();
+            ByteBuf payload = null;
+            try {
+                payload = this.compress(player, batched, false);
+            } finally {
+                sequence.complete(slot, payload);
+            }
+        }
+    }
+
+    private ByteBuf compress(Player player, BinaryStream batched, boolean noCompression) throws IOException {
+        long start = System.nanoTime();
+        ByteBuf payload = Server.compressBatch(player, batched, noCompression);
+        this.compressionLatency.record(System.nanoTime() - start);
+        return payload;
+    }
+
+    public int getQueueDepth() {
+        return this.executor == null ? 0 : this.executor.getQueue().size();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getAsyncBatches() {
+        return asyncBatches.get();
+    }
+
+    public long getRejectedBatches() {
+        return rejectedBatches.get();
+    }
+
+    public void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Keeps the batches of a player in order while some of them are still being compressed. Whether a batch is
+     * encrypted is decided when it is submitted, so batches submitted before the encryption handshake stay plain.
+     */
+    public static class Sequence {
+
+        private final Sender sender;
+        private final Consumer<EncryptionContext> encryptionListener;
+        private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+        /**
+         * Encryption of the batches submitted from now on
+         */
+        private EncryptionContext encryption;
+
+        /**
+         * @param sender sends a batch once all batches submitted before it are sent
+         * @param encryptionListener called once the batches submitted before the encryption was enabled are sent
+         */
+        public Sequence(Sender sender, Consumer<EncryptionContext> encryptionListener) {
+            this.sender = sender;
+            this.encryptionListener = encryptionListener;
+        }
+
+        /**
+         * Send a compressed batch once all batches submitted before it are sent
+         *
+         * @param payload compressed batch
+         * @param shared whether the payload is shared with other players
+         */
+        public synchronized void send(ByteBuf payload, boolean shared) {
+            if (this.slots.isEmpty()) {
+                this.sender.send(payload, this.encryption, shared);
+            } else {
+                Slot slot = this.add(shared);
+                slot.payload = payload;
+                slot.done = true;
+            }
+        }
+
+        /**
+         * Encrypt the batches submitted from now on. Callers which send the handshake first have to hold the lock of
+         * the sequence across both calls, so no other batch gets in between.
+         *
+         * @param encryption encryption context
+         */
+        public synchronized void enableEncryption(EncryptionContext encryption) {
+            this.encryption = encryption;
+            if (this.slots.isEmpty()) {
+                this.encryptionListener.accept(encryption);
+            } else {
+                Slot slot = this.add(false);
+                slot.enabledEncryption = encryption;
+                slot.done = true;
+            }
+        }
+
+        private synchronized Slot reserve() {
+            return this.add(false);
+        }
+
+        private Slot add(boolean shared) {
+            Slot slot = new Slot();
+            slot.encryption = this.encryption;
+            slot.shared = shared;
+            this.slots.add(slot);
+            return slot;
+        }
+
+        private synchronized void complete(Slot slot, ByteBuf payload) {
+            slot.payload = payload;
+            slot.done = true;
+
+            Slot head;
+            while ((head = this.slots.peek()) != null && head.done) {
+                this.slots.poll();
+                if (head.payload != null) {
+                    this.sender.send(head.payload, head.encryption, head.shared);
+                }
+                if (head.enabledEncryption != null) {
+                    this.encryptionListener.accept(head.enabledEncryption);
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Sender {
+
+        /**
+         * @param payload compressed batch
+         * @param encryption encryption context the batch was submitted with, null if it is not encrypted
+         * @param shared whether the payload is shared with other players
+         */
+        void send(ByteBuf payload, EncryptionContext encryption, boolean shared);
+    }
+
+    private static class Slot {
+
+        private ByteBuf payload;
+        private EncryptionContext encryption;
+        private boolean shared;
+        private EncryptionContext enabledEncryption;
+        private boolean done;
+    }
+}
@@ -15,9 +15,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * @author MagicDroidX
@@ -27,6 +29,10 @@ import java.util.Set;
 public class Network {
 
     private Class<? extends DataPacket>[] packetPool = new Class[512];
+    /**
+     * Packets sent to players which have to be decoded. Everything else is forwarded as raw frames.
+     */
+    private final boolean[] decodeRequired = new boolean[256];
     private final Server server;
     private final Set<SourceInterface> interfaces = new HashSet<>();
     private final Set<AdvancedSourceInterface> advancedInterfaces = new HashSet<>();
@@ -37,6 +43,15 @@ public class Network {
     public Network(Server server) {
         this.registerPackets();
         this.server = server;
+
+        // Packets tracked by Player#handleIncomingPacket
+        this.setDecodeRequired(ProtocolInfo.ADD_PLAYER_PACKET, true);
+        this.setDecodeRequired(ProtocolInfo.ADD_ENTITY_PACKET, true);
+        this.setDecodeRequired(ProtocolInfo.ADD_ITEM_ENTITY_PACKET, true);
+        this.setDecodeRequired(ProtocolInfo.ADD_PAINTING_PACKET, true);
+        this.setDecodeRequired(ProtocolInfo.REMOVE_ENTITY_PACKET, true);
+        this.setDecodeRequired(ProtocolInfo.SET_DISPLAY_OBJECTIVE_PACKET, true);
+        this.setDecodeRequired(ProtocolInfo.SET_SCORE_PACKET, true);
     }
 
     public void addStatistics(double upload, double download) {
@@ -117,51 +132,69 @@ public class Network {
     }
 
     public void processBatch(BatchPacket packet, Player player) {
+        List<DataPacket> packets = this.decodeBatch(packet.payload, packet.noCompression, player, player::close);
+        if (packets != null) {
+            for (DataPacket pk : packets) {
+                player.addOutgoingPacket(pk);
+            }
+        }
+    }
+
+    /**
+     * Decompress a batch received from a player and decode the packets in it. This is called from the network
+     * threads, so errors which require the player to be closed are passed to the given callback.
+     *
+     * @param payload compressed batch
+     * @param noCompression whether the batch is uncompressed
+     * @param player player which sent the batch
+     * @param close called with the reason the player should be closed for
+     * @return decoded packets, or null if the batch is invalid
+     */
+    public List<DataPacket> decodeBatch(byte[] payload, boolean noCompression, Player player, Consumer<String> close) {
         byte[] data;
         try {
-            if (packet.noCompression || (player.raknetProtocol >= 11 && !player.networkSettingsUpdated)) {
-                data = packet.payload;
+            if (noCompression || (player.raknetProtocol >= 11 && !player.inboundCompression)) {
+                data = payload;
             } else if (Server.useSnappy && player.raknetProtocol >= 11) {
-                data = SnappyCompression.rawDecompress(packet.payload, Server.dataLimit);
+                data = SnappyCompression.rawDecompress(payload, Server.dataLimit);
             } else if (player.raknetProtocol >= 10) {
-                data = Zlib.INSTANCE.inflateRaw(packet.payload, Server.dataLimit);
+                data = Zlib.INSTANCE.inflateRaw(payload, Server.dataLimit);
             } else {
-                data = Zlib.INSTANCE.inflate(packet.payload, Server.dataLimit);
+                data = Zlib.INSTANCE.inflate(payload, Server.dataLimit);
             }
         } catch (Exception e) {
             if (Nemisys.DEBUG > 1) {
                 this.server.getLogger().debug("Error whilst decompressing batch packet from " + player.getName(), e);
             }
-            player.close("Corrupted packet");
-            return;
+            close.accept("Corrupted packet");
+            return null;
         }
 
         try {
             int len = data.length;
+            int protocol = player.protocol;
             BinaryStream stream = new BinaryStream(data);
             List<DataPacket> packets = new ArrayList<>();
             int count = 0;
             while (stream.offset < len) {
                 count++;
                 if (count > Server.packetLimit) {
-                    player.close("Too big batch packet");
-                    return;
+                    close.accept("Too big batch packet");
+                    return null;
                 }
 
                 byte[] buf = stream.getByteArray();
                 if (buf.length > 0) {
-                    DataPacket pk = this.getPacketFromBuffer(player.protocol, buf);
-                    pk.protocol = player.protocol;
+                    DataPacket pk = this.getPacketFromBuffer(protocol, buf);
+                    pk.protocol = protocol;
                     pk.decode();
                     packets.add(pk);
                 }
             }
-
-            for (DataPacket pk : packets) {
-                player.addOutgoingPacket(pk);
-            }
+            return packets;
         } catch (Exception e) {
             this.server.getLogger().error("Error whilst decoding batch packet from " + player.getName(), e);
+            return null;
         }
     }
 
@@ -190,6 +223,49 @@ public class Network {
         return pk;
     }
 
+    /**
+     * Set whether packets with the given id sent from downstream servers to players have to be decoded.
+     * Custom player classes which read more packets in handleIncomingPacket should register them here.
+     *
+     * @param id packet id
+     * @param required whether to decode the packet
+     */
+    public void setDecodeRequired(byte id, boolean required) {
+        this.decodeRequired[id & 0xff] = required;
+    }
+
+    public boolean isDecodeRequired(byte id) {
+        int index = id & 0xff;
+        // Plugins listening to DataPacketSendEvent expect the packets to be decoded
+        return this.decodeRequired[index] || (Server.callDataPkSendEv && this.packetPool[index] != null);
+    }
+
+    /**
+     * Create a packet for a frame sent by a downstream server. Only the packets which have to be inspected are
+     * decoded, other frames are wrapped without copying and batched again without being re-encoded.
+     *
+     * @param protocol player protocol
+     * @param buffer buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame
+     * @return packet
+     */
+    public DataPacket getLazyPacket(int protocol, byte[] buffer, int offset, int length) {
+        byte pid = buffer[offset];
+        if (!this.isDecodeRequired(pid)) {
+            GenericPacket pk = GenericPacket.wrap(buffer, offset, length);
+            pk.protocol = protocol;
+            return pk;
+        }
+
+        DataPacket pk = this.getPacketOrEmpty(pid);
+        pk.setBuffer(offset == 0 && length == buffer.length ? buffer : Arrays.copyOfRange(buffer, offset, offset + length), 1);
+        pk.protocol = protocol;
+        pk.decode();
+        pk.isEncoded = true;
+        return pk;
+    }
+
     public DataPacket getPacket(int id) {
         Class<? extends DataPacket> clazz = this.packetPool[id];
         if (clazz != null) {
@@ -220,6 +296,24 @@ public class Network {
         }
     }
 
+    public void blockRange(InetAddress address, int prefixLength) {
+        for (AdvancedSourceInterface sourceInterface : this.advancedInterfaces) {
+            sourceInterface.blockRange(address, prefixLength);
+        }
+    }
+
+    public void blockRange(InetAddress address, int prefixLength, int timeout) {
+        for (AdvancedSourceInterface sourceInterface : this.advancedInterfaces) {
+            sourceInterface.blockRange(address, prefixLength, timeout);
+        }
+    }
+
+    public void unblockRange(InetAddress address, int prefixLength) {
+        for (AdvancedSourceInterface sourceInterface : this.advancedInterfaces) {
+            sourceInterface.unblockRange(address, prefixLength);
+        }
+    }
+
     private void registerPackets() {
         this.packetPool = new Class[512];
 
@@ -0,0 +1,37 @@
+package org.itxtech.nemisys.network;
+
+import io.netty.buffer.ByteBuf;
+import org.itxtech.nemisys.network.protocol.mcpe.DataPacket;
+import org.itxtech.nemisys.network.protocol.mcpe.ProtocolInfo;
+
+/**
+ * A batch which is already compressed, queued to a player so it is sent in order with the packets queued before it.
+ * The payload is shared between the players of a broadcast and must not be modified in place.
+ */
+public class PreparedBatchPacket extends DataPacket {
+
+    public final ByteBuf payload;
+
+    public PreparedBatchPacket(ByteBuf payload) {
+        this.payload = payload;
+        this.isEncoded = true;
+    }
+
+    @Override
+    public byte pid() {
+        return ProtocolInfo.BATCH_PACKET;
+    }
+
+    @Override
+    public void encode() {
+    }
+
+    @Override
+    public void decode() {
+    }
+
+    @Override
+    public int getEncodedSize() {
+        return this.payload.readableBytes();
+    }
+}
@@ -2,10 +2,10 @@ package org.itxtech.nemisys.network;
 
 import com.google.common.base.Strings;
 import com.nukkitx.network.raknet.*;
+import com.nukkitx.network.raknet.util.AddressBlocklist;
 import com.nukkitx.network.util.DisconnectReason;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.util.internal.PlatformDependent;
@@ -14,17 +14,20 @@ import org.itxtech.nemisys.Player;
 import org.itxtech.nemisys.Server;
 import org.itxtech.nemisys.event.player.PlayerCreationEvent;
 import org.itxtech.nemisys.event.server.QueryRegenerateEvent;
-import org.itxtech.nemisys.network.encryption.Sha256;
+import org.itxtech.nemisys.network.encryption.EncryptionContext;
 import org.itxtech.nemisys.network.protocol.mcpe.BatchPacket;
 import org.itxtech.nemisys.network.protocol.mcpe.DataPacket;
 import org.itxtech.nemisys.utils.Utils;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -36,9 +39,14 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
 
     private final Server server;
     private final RakNetServer raknet;
-    private byte[] advertisement;
-
-    private final Map<InetSocketAddress, NukkitRakNetSession> sessions = new HashMap<>();
+    /**
+     * Query information and player counts the current advertisement was built from
+     */
+    private QueryRegenerateEvent advertisedInfo;
+    private int advertisedPlayers = -1;
+    private int advertisedMaxPlayers = -1;
+
+    private final List<NukkitRakNetSession> sessions = new ArrayList<>();
     private final Queue<NukkitRakNetSession> sessionCreationQueue = PlatformDependent.newMpscQueue();
 
     public RakNetInterface(Server server) {
@@ -46,12 +54,31 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
         this.raknet = new RakNetServer(new InetSocketAddress(Strings.isNullOrEmpty(this.server.getIp()) ? "0.0.0.0" : this.server.getIp(), this.server.getPort()), Runtime.getRuntime().availableProcessors());
         this.raknet.bind().join();
         this.raknet.setListener(this);
+
+        String blocklistFile = this.server.getPropertyString("blocklist-file", "");
+        if (!blocklistFile.isEmpty()) {
+            Path path = Paths.get(blocklistFile);
+            if (Files.isRegularFile(path)) {
+                try {
+                    int count = this.raknet.getBlocklist().importFile(path, AddressBlocklist.PERMANENT);
+                    this.server.getLogger().info("Loaded " + count + " blocklist entries from " + blocklistFile);
+                } catch (IOException e) {
+                    this.server.getLogger().error("Failed to load blocklist " + blocklistFile, e);
+                }
+            } else {
+                this.server.getLogger().warning("Blocklist file " + blocklistFile + " does not exist");
+            }
+        }
     }
 
     @Override
     public void setNetwork(Network network) {
     }
 
+    public RakNetServer getRakNet() {
+        return this.raknet;
+    }
+
     @Override
     public boolean process() {
         NukkitRakNetSession session;
@@ -65,15 +92,16 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
                 Constructor<? extends Player> constructor = clazz.getConstructor(SourceInterface.class, Long.class, InetSocketAddress.class);
                 Player player = constructor.newInstance(this, ev.getClientId(), ev.getSocketAddress());
                 player.raknetProtocol = session.raknet.getProtocolVersion();
+                player.raknetSession = session.raknet;
                 session.player = player;
                 this.server.addPlayer(address, player);
-                this.sessions.put(address, session);
+                this.sessions.add(session);
             } catch (NoSuchMethodException | InvocationTargetException | InstantiationException | IllegalAccessException e) {
                 Server.getInstance().getLogger().logException(e);
             }
         }
 
-        Iterator<NukkitRakNetSession> iterator = this.sessions.values().iterator();
+        Iterator<NukkitRakNetSession> iterator = this.sessions.iterator();
         while (iterator.hasNext()) {
             NukkitRakNetSession nukkitSession = iterator.next();
             if (nukkitSession.disconnectReason != null) {
@@ -81,6 +109,11 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
                 iterator.remove();
                 continue;
             }
+            if (nukkitSession.closeReason != null) {
+                nukkitSession.player.close(nukkitSession.closeReason);
+                iterator.remove();
+                continue;
+            }
             DataPacket packet;
             while ((packet = nukkitSession.packets.poll()) != null) {
                 try {
@@ -90,12 +123,14 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
                 }
             }
         }
+
+        this.updateAdvertisement();
         return true;
     }
 
     @Override
     public int getNetworkLatency(Player player) {
-        RakNetServerSession session = this.raknet.getSession(player.getSocketAddress());
+        RakNetServerSession session = player.raknetSession;
         return session == null ? -1 : (int) session.getPing();
     }
 
@@ -106,7 +141,7 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
 
     @Override
     public void close(Player player, String reason) {
-        RakNetServerSession session = this.raknet.getSession(player.getSocketAddress());
+        RakNetServerSession session = player.raknetSession;
         if (session != null) {
             session.close();
         }
@@ -138,6 +173,23 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
         this.raknet.unblock(address);
     }
 
+    @Override
+    public void blockRange(InetAddress address, int prefixLength) {
+        this.raknet.block(address, prefixLength);
+        this.server.getLogger().info("Blocked " + address.getHostAddress() + '/' + prefixLength + " permanently");
+    }
+
+    @Override
+    public void blockRange(InetAddress address, int prefixLength, int timeout) {
+        this.raknet.block(address, prefixLength, timeout, TimeUnit.SECONDS);
+        this.server.getLogger().info("Blocked " + address.getHostAddress() + '/' + prefixLength + " for " + timeout + " seconds");
+    }
+
+    @Override
+    public void unblockRange(InetAddress address, int prefixLength) {
+        this.raknet.unblock(address, prefixLength);
+    }
+
     @Override
     public void sendRawPacket(InetSocketAddress socketAddress, ByteBuf payload) {
         this.raknet.send(socketAddress, payload);
@@ -145,20 +197,37 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
 
     @Override
     public void setName(String name) {
+        this.advertisedInfo = null;
+        this.updateAdvertisement();
+    }
+
+    /**
+     * Rebuild the advertisement sent in pongs when the query information or the player count changed
+     */
+    private void updateAdvertisement() {
         QueryRegenerateEvent info = this.server.getQueryInformation();
+        int players = this.server.getOnlinePlayers().size();
+        int maxPlayers = Server.plusOnePlayerCount ? players + 1 : info.getMaxPlayerCount();
+        if (info == this.advertisedInfo && players == this.advertisedPlayers && maxPlayers == this.advertisedMaxPlayers) {
+            return;
+        }
+        this.advertisedInfo = info;
+        this.advertisedPlayers = players;
+        this.advertisedMaxPlayers = maxPlayers;
+
         StringJoiner joiner = new StringJoiner(";")
                 .add("MCPE")
                 .add(Utils.rtrim(info.getServerName().replace(";", "\\;"), '\\'))
                 .add("407")
                 .add(this.server.getVersion())
-                .add(Integer.toString(info.getPlayerCount()))
-                .add(Integer.toString(info.getMaxPlayerCount()))
+                .add(Integer.toString(players))
+                .add(Integer.toString(maxPlayers))
                 .add(Long.toString(this.raknet.getGuid()))
                 .add(info.getWorld())
                 .add("Survival")
                 .add("1");
 
-        this.advertisement = joiner.toString().getBytes(StandardCharsets.UTF_8);
+        this.raknet.setAdvertisement(joiner.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     @Override
@@ -173,72 +242,57 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
 
     @Override
     public Integer putPacket(Player player, DataPacket packet, boolean needACK, boolean immediate) {
-        RakNetServerSession session = this.raknet.getSession(player.getSocketAddress());
-        if (session == null) {
+        if (!(packet instanceof BatchPacket)) {
+            this.server.batchPacket(player, packet);
             return null;
         }
 
-        byte[] compressedPayload;
-        if (packet instanceof BatchPacket) {
-            compressedPayload = ((BatchPacket) packet).payload;
-            if (compressedPayload == null) {
-                return null;
-            }
-        } else {
-            this.server.batchPacket(player, packet);
+        byte[] compressedPayload = ((BatchPacket) packet).payload;
+        if (compressedPayload == null) {
             return null;
         }
 
-        boolean prefixed = player.protocol >= 649 && player.networkSettingsUpdated;
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.heapBuffer(BatchPacket.HEADROOM + compressedPayload.length + 8); // id(1)+prefix(1)+data+encryption(8)
+        payload.writerIndex(BatchPacket.HEADROOM);
+        payload.readerIndex(BatchPacket.HEADROOM);
+        if (player.protocol >= 649 && player.networkSettingsUpdated) {
+            payload.setByte(payload.readerIndex() - 1, ((BatchPacket) packet).noCompression ? 0xff : Server.useSnappy ? 0x01 : 0x00);
+            payload.readerIndex(payload.readerIndex() - 1);
+        }
+        payload.setByte(payload.readerIndex() - 1, 0xfe);
+        payload.writeBytes(compressedPayload);
+        player.sendBatch(payload); // Keep the order with batches still being compressed
+        return null;
+    }
 
-        ByteBuf finalPayload = ByteBufAllocator.DEFAULT.directBuffer((prefixed ? 10 : 9) + compressedPayload.length); // prefix(1)+id(1)+encryption(8)+data
-        finalPayload.writeByte(0xfe);
+    @Override
+    public void putBatch(Player player, ByteBuf payload, EncryptionContext encryption, boolean immediate) {
+        RakNetServerSession session = player.raknetSession;
+        if (session == null) {
+            payload.release();
+            return;
+        }
+
+        if (encryption == null) {
+            // The packet id is already in front of the data, the payload may be shared with other players
+            payload.readerIndex(payload.readerIndex() - 1);
+            session.send(payload, immediate ? RakNetPriority.IMMEDIATE : RakNetPriority.MEDIUM, RakNetReliability.RELIABLE_ORDERED, 0);
+            return;
+        }
 
-        if (player.getEncryptionCipher() != null) {
+        // Packets have to be queued in the order they were encrypted in
+        synchronized (encryption) {
             try {
-                byte[] fullPayload = prefixed ? new byte[compressedPayload.length + 1] : compressedPayload;
-                if (prefixed) {
-                    fullPayload[0] = Server.useSnappy ? (byte) 0x01 : (byte) 0x00;
-                    System.arraycopy(compressedPayload, 0, fullPayload, 1, compressedPayload.length);
-                }
-                ByteBuf compressed = Unpooled.wrappedBuffer(fullPayload);
-                ByteBuffer trailer = ByteBuffer.wrap(this.generateTrailer(player, compressed));
-                ByteBuffer outBuffer = finalPayload.internalNioBuffer(1, compressed.readableBytes() + 8);
-                ByteBuffer inBuffer = compressed.internalNioBuffer(compressed.readerIndex(), compressed.readableBytes());
-                player.getEncryptionCipher().update(inBuffer, outBuffer);
-                player.getEncryptionCipher().update(trailer, outBuffer);
-                finalPayload.writerIndex(finalPayload.writerIndex() + compressed.readableBytes() + 8);
+                encryption.encrypt(payload);
             } catch (Exception ex) {
                 Server.getInstance().getLogger().error("Packet encryption failed for " + player.getName(), ex);
-            }
-        } else {
-            if (prefixed) {
-                finalPayload.writeByte(Server.useSnappy ? (byte) 0x01 : (byte) 0x00);
+                payload.release();
+                return;
             }
 
-            finalPayload.writeBytes(compressedPayload);
-        }
-
-        session.send(finalPayload, immediate ? RakNetPriority.IMMEDIATE : RakNetPriority.MEDIUM, RakNetReliability.RELIABLE_ORDERED, 0);
-        return null;
-    }
-
-    private static final ThreadLocal<Sha256> HASH_LOCAL = ThreadLocal.withInitial(Sha256::new);
-
-    private byte[] generateTrailer(Player player, ByteBuf buf) {
-        Sha256 hash = HASH_LOCAL.get();
-        ByteBuf counterBuf = ByteBufAllocator.DEFAULT.directBuffer(8);
-        try {
-            counterBuf.writeLongLE(player.getSentEncryptedPacketCount().getAndIncrement());
-            ByteBuffer keyBuffer = ByteBuffer.wrap(player.getEncryptionKey().getEncoded());
-            hash.update(counterBuf.internalNioBuffer(0, 8));
-            hash.update(buf.internalNioBuffer(buf.readerIndex(), buf.readableBytes()));
-            hash.update(keyBuffer);
-            byte[] digested = hash.digest();
-            return Arrays.copyOf(digested, 8);
-        } finally {
-            counterBuf.release();
-            hash.reset();
+            payload.readerIndex(payload.readerIndex() - 1);
+            payload.setByte(payload.readerIndex(), 0xfe);
+            session.send(payload, immediate ? RakNetPriority.IMMEDIATE : RakNetPriority.MEDIUM, RakNetReliability.RELIABLE_ORDERED, 0);
         }
     }
 
@@ -247,11 +301,6 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
         return true;
     }
 
-    @Override
-    public byte[] onQuery(InetSocketAddress inetSocketAddress) {
-        return this.advertisement;
-    }
-
     @Override
     public void onSessionCreation(RakNetServerSession session) {
         NukkitRakNetSession nukkitSession = new NukkitRakNetSession(session);
@@ -268,8 +317,12 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
 
         private final RakNetServerSession raknet;
         private final Queue<DataPacket> packets = PlatformDependent.newSpscQueue();
-        private String disconnectReason = null;
-        private Player player;
+        private volatile String disconnectReason = null;
+        /**
+         * Set by the network thread when the player has to be closed, the player is closed on the main thread
+         */
+        private volatile String closeReason = null;
+        private volatile Player player;
 
         @Override
         public void onSessionChangeState(RakNetState rakNetState) {
@@ -287,50 +340,63 @@ public class RakNetInterface implements RakNetServerListener, AdvancedSourceInte
         public void onEncapsulated(EncapsulatedPacket packet) {
             ByteBuf buffer = packet.getBuffer();
             if (buffer.readUnsignedByte() == 0xfe) {
+                if (this.closeReason != null) {
+                    return;
+                }
+
+                Player player = this.player;
                 int len = buffer.readableBytes();
                 if (len > 12582912) {
                     Server.getInstance().getLogger().error("Received too big packet: " + len);
-                    if (this.player != null) {
-                        this.player.close("Too big packet");
+                    if (player != null) {
+                        this.closeReason = "Too big packet";
                     }
                     return;
                 }
 
-                boolean prefixed = this.player != null && this.player.protocol >= 649 && this.player.networkSettingsUpdated;
+                if (player != null && !player.countBatchPacket()) {
+                    this.closeReason = "Too many packets";
+                    return;
+                }
+
+                boolean prefixed = player != null && player.protocol >= 649 && player.inboundCompression;
                 boolean noCompression = false;
 
-                byte[] packetBuffer;
-                if (this.player != null && this.player.getDecryptionCipher() != null) {
+                EncryptionContext encryption = player == null ? null : player.getEncryptionContext();
+                if (encryption != null) {
                     try {
-                        ByteBuffer buf = buffer.nioBuffer();
-                        this.player.getDecryptionCipher().update(buf, buf.duplicate());
+                        if (!encryption.decrypt(buffer, Server.verifyEncryptionChecksum)) {
+                            Server.getInstance().getLogger().warning("Invalid encryption checksum from " + player.getName());
+                            this.closeReason = "Invalid encryption checksum";
+                            return;
+                        }
                     } catch (Exception ex) {
                         Server.getInstance().getLogger().error("Packet decryption failed for " + player.getName(), ex);
                         return;
                     }
+                }
 
-                    if (prefixed) {
-                        noCompression = buffer.readByte() == (byte) 0xff;
-                    }
-
-                    packetBuffer = new byte[buffer.readableBytes() - 8];
-                } else {
-                    if (prefixed) {
-                        noCompression = buffer.readByte() == (byte) 0xff;
-                    }
-
-                    packetBuffer = new byte[buffer.readableBytes()];
+                if (prefixed) {
+                    noCompression = buffer.readByte() == (byte) 0xff;
                 }
 
+                byte[] packetBuffer = new byte[buffer.readableBytes()];
                 buffer.readBytes(packetBuffer);
 
-                BatchPacket batchPacket = new BatchPacket(new byte[0]);
-                batchPacket.payload = packetBuffer; // no unnecessary copying with decode()
-                batchPacket.noCompression = noCompression;
-                if (this.player == null) {
+                if (player == null) {
+                    BatchPacket batchPacket = new BatchPacket(new byte[0]);
+                    batchPacket.payload = packetBuffer; // no unnecessary copying with decode()
+                    batchPacket.noCompression = noCompression;
                     this.packets.add(batchPacket);
-                } else {
-                    this.player.addOutgoingPacket(batchPacket); // handleDataPacket on player ticker
+                    return;
+                }
+
+                // Decompress and decode on the session's event loop, the player ticker only handles the packets
+                List<DataPacket> packets = server.getNetwork().decodeBatch(packetBuffer, noCompression, player, reason -> this.closeReason = reason);
+                if (packets != null) {
+                    for (DataPacket pk : packets) {
+                        player.addOutgoingPacket(pk);
+                    }
                 }
             }
         }
@@ -1,6 +1,9 @@
 package org.itxtech.nemisys.network;
 
+import io.netty.buffer.ByteBuf;
 import org.itxtech.nemisys.Player;
+import org.itxtech.nemisys.network.encryption.EncryptionContext;
+import org.itxtech.nemisys.network.protocol.mcpe.BatchPacket;
 import org.itxtech.nemisys.network.protocol.mcpe.DataPacket;
 
 
@@ -16,6 +19,32 @@ public interface SourceInterface {
 
     Integer putPacket(Player player, DataPacket packet, boolean needACK, boolean immediate);
 
+    /**
+     * Send a compressed batch. The compressed data, preceded by the compression prefix for clients which expect
+     * one, starts at the reader index of the buffer and the byte in front of it holds the packet id. The content
+     * may be shared with other players and must not be modified, unless the player has its own copy for
+     * encryption. The buffer is released by the interface.
+     *
+     * @param player player
+     * @param payload compressed batch
+     * @param encryption encryption context the batch was submitted with, null if it is sent unencrypted
+     * @param immediate whether to send the batch immediately
+     */
+    default void putBatch(Player player, ByteBuf payload, EncryptionContext encryption, boolean immediate) {
+        try {
+            BatchPacket pk = new BatchPacket();
+            if (player.protocol >= 649 && player.networkSettingsUpdated) {
+                // putPacket writes the compression prefix again
+                pk.noCompression = payload.readUnsignedByte() == 0xff;
+            }
+            pk.payload = new byte[payload.readableBytes()];
+            payload.readBytes(pk.payload);
+            this.putPacket(player, pk, false, immediate);
+        } finally {
+            payload.release();
+        }
+    }
+
     int getNetworkLatency(Player player);
 
     void close(Player player);
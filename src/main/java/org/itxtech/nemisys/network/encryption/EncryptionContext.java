@@ -0,0 +1,126 @@
+package org.itxtech.nemisys.network.encryption;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encryption state of a player. The key bytes, the counter buffers and the digests are reused for every packet, and
+ * heap buffers are handed to the cipher and the digest as arrays, so no ByteBuffer views are created for them.
+ * Encryption is done by the threads sending batches to the player and decryption by the network thread, so each
+ * direction has its own state.
+ */
+public class EncryptionContext {
+
+    private static final int CHECKSUM_LENGTH = 8;
+    private static final int DIGEST_LENGTH = 32;
+
+    @Getter
+    private final SecretKey key;
+    private final byte[] keyBytes;
+    @Getter
+    private final Cipher encryptionCipher;
+    @Getter
+    private final Cipher decryptionCipher;
+
+    private final Sha256 encryptionHash = new Sha256();
+    private final ByteBuffer encryptionCounter = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private long sentPacketCount;
+
+    private final Sha256 decryptionHash = new Sha256();
+    private final ByteBuffer decryptionCounter = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] decryptionDigest = new byte[DIGEST_LENGTH];
+    private long receivedPacketCount;
+
+    public EncryptionContext(SecretKey key, Cipher encryptionCipher, Cipher decryptionCipher) {
+        this.key = key;
+        this.keyBytes = key.getEncoded();
+        this.encryptionCipher = encryptionCipher;
+        this.decryptionCipher = decryptionCipher;
+    }
+
+    /**
+     * Append the checksum to the readable bytes of the buffer and encrypt them in place. Callers sending the buffer
+     * should hold the lock of this context until it is queued, so packets are sent in the order they were encrypted.
+     *
+     * @param buf buffer to encrypt
+     */
+    public synchronized void encrypt(ByteBuf buf) throws GeneralSecurityException {
+        int start = buf.readerIndex();
+        this.checksum(this.encryptionHash, this.encryptionCounter, this.sentPacketCount++, buf, start, buf.readableBytes());
+
+        // The digest is written in place and cut to the length of the checksum
+        buf.ensureWritable(DIGEST_LENGTH);
+        if (buf.hasArray()) {
+            this.encryptionHash.digest(buf.array(), buf.arrayOffset() + buf.writerIndex(), DIGEST_LENGTH);
+            buf.writerIndex(buf.writerIndex() + CHECKSUM_LENGTH);
+        } else {
+            buf.writeBytes(this.encryptionHash.digest(), 0, CHECKSUM_LENGTH);
+        }
+
+        update(this.encryptionCipher, buf, start, buf.writerIndex() - start);
+    }
+
+    /**
+     * Decrypt the readable bytes of the buffer in place and remove the checksum from the end
+     *
+     * @param buf buffer to decrypt
+     * @param verify whether to verify the checksum
+     * @return false if the buffer is too short or the checksum does not match
+     */
+    public boolean decrypt(ByteBuf buf, boolean verify) throws GeneralSecurityException {
+        if (buf.readableBytes() < CHECKSUM_LENGTH) {
+            return false;
+        }
+
+        update(this.decryptionCipher, buf, buf.readerIndex(), buf.readableBytes());
+
+        int length = buf.readableBytes() - CHECKSUM_LENGTH;
+        long counter = this.receivedPacketCount++;
+        if (verify) {
+            this.checksum(this.decryptionHash, this.decryptionCounter, counter, buf, buf.readerIndex(), length);
+            this.decryptionHash.digest(this.decryptionDigest, 0, DIGEST_LENGTH);
+            int checksumIndex = buf.readerIndex() + length;
+            for (int i = 0; i < CHECKSUM_LENGTH; i++) {
+                if (this.decryptionDigest[i] != buf.getByte(checksumIndex + i)) {
+                    return false;
+                }
+            }
+        }
+
+        buf.writerIndex(buf.readerIndex() + length);
+        return true;
+    }
+
+    private void checksum(Sha256 hash, ByteBuffer counterBuffer, long counter, ByteBuf buf, int index, int length) {
+        hash.reset();
+        counterBuffer.clear();
+        counterBuffer.putLong(0, counter);
+        hash.update(counterBuffer);
+        if (buf.hasArray()) {
+            hash.update(buf.array(), buf.arrayOffset() + index, length);
+        } else {
+            hash.update(buf.internalNioBuffer(index, length));
+        }
+        hash.update(this.keyBytes, 0, this.keyBytes.length);
+    }
+
+    /**
+     * Encrypt or decrypt the bytes in place
+     */
+    private static void update(Cipher cipher, ByteBuf buf, int index, int length) throws GeneralSecurityException {
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset() + index;
+            cipher.update(buf.array(), offset, length, buf.array(), offset);
+        } else {
+            // The cipher needs separate input and output views of the same memory
+            ByteBuffer nio = buf.internalNioBuffer(index, length);
+            cipher.update(nio, nio.duplicate());
+        }
+    }
+}
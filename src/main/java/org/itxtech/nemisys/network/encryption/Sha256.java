@@ -1,6 +1,7 @@
 package org.itxtech.nemisys.network.encryption;
 
 import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -28,6 +29,10 @@ public class Sha256 {
         return this.digest.digest();
     }
 
+    public int digest(byte[] buf, int offset, int len) throws DigestException {
+        return this.digest.digest(buf, offset, len);
+    }
+
     public void reset() {
         this.digest.reset();
     }
@@ -6,6 +6,11 @@ package org.itxtech.nemisys.network.protocol.mcpe;
  */
 public class BatchPacket extends DataPacket {
 
+    /**
+     * Bytes reserved in front of outgoing batch data for the compression prefix and the packet id
+     */
+    public static final int HEADROOM = 2;
+
     public byte[] payload;
     public boolean noCompression;
 
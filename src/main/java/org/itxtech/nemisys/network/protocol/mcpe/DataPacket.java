@@ -59,4 +59,23 @@ public abstract class DataPacket extends BinaryStream implements Cloneable {
             this.encode();
         }
     }
+
+    /**
+     * Write the encoded packet to a batch as a length prefixed frame
+     *
+     * @param batch batch stream
+     */
+    public void writeTo(BinaryStream batch) {
+        batch.putUnsignedVarInt(this.getCount());
+        batch.put(this.getBufferUnsafe(), 0, this.getCount());
+    }
+
+    /**
+     * Get the length of the encoded packet
+     *
+     * @return length in bytes
+     */
+    public int getEncodedSize() {
+        return this.getCount();
+    }
 }
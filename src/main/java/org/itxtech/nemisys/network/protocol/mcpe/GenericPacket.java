@@ -1,5 +1,9 @@
 package org.itxtech.nemisys.network.protocol.mcpe;
 
+import org.itxtech.nemisys.utils.BinaryStream;
+
+import java.util.Arrays;
+
 /**
  * @author PeratX
  * Nemisys Project
@@ -8,6 +12,10 @@ public class GenericPacket extends DataPacket {
 
     public byte pid;
 
+    private byte[] frame;
+    private int frameOffset;
+    private int frameLength;
+
     public GenericPacket() {
         super();
     }
@@ -20,6 +28,25 @@ public class GenericPacket extends DataPacket {
         super(buffer, offset);
     }
 
+    /**
+     * Create a packet referencing an encoded frame inside a larger buffer. The frame is not copied, so the buffer
+     * must not be modified afterwards.
+     *
+     * @param buffer buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame
+     * @return packet which is written to batches as is
+     */
+    public static GenericPacket wrap(byte[] buffer, int offset, int length) {
+        GenericPacket pk = new GenericPacket();
+        pk.pid = buffer[offset];
+        pk.frame = buffer;
+        pk.frameOffset = offset;
+        pk.frameLength = length;
+        pk.isEncoded = true;
+        return pk;
+    }
+
     @Override
     public byte pid() {
         return pid;
@@ -32,4 +59,27 @@ public class GenericPacket extends DataPacket {
     @Override
     public void decode() {
     }
+
+    @Override
+    public byte[] getBuffer() {
+        if (this.frame != null) {
+            return Arrays.copyOfRange(this.frame, this.frameOffset, this.frameOffset + this.frameLength);
+        }
+        return super.getBuffer();
+    }
+
+    @Override
+    public int getEncodedSize() {
+        return this.frame != null ? this.frameLength : super.getEncodedSize();
+    }
+
+    @Override
+    public void writeTo(BinaryStream batch) {
+        if (this.frame != null) {
+            batch.putUnsignedVarInt(this.frameLength);
+            batch.put(this.frame, this.frameOffset, this.frameLength);
+        } else {
+            super.writeTo(batch);
+        }
+    }
 }
@@ -0,0 +1,170 @@
+package org.itxtech.nemisys.scheduler;
+
+import org.itxtech.nemisys.Player;
+import org.itxtech.nemisys.Server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ticks players on a fixed set of threads. Every player is pinned to one shard which ticks all of its players in a
+ * loop, so no task is created per player per tick and a player is always ticked by the same thread.
+ */
+public class PlayerTicker {
+
+    private final Server server;
+    private final Shard[] shards;
+    private volatile long currentTick;
+    private volatile boolean running = true;
+
+    public PlayerTicker(Server server, int threads) {
+        this.server = server;
+        this.shards = new Shard[Math.max(threads, 1)];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(i);
+            this.shards[i].start();
+        }
+    }
+
+    /**
+     * Assign the player to the shard with the fewest players
+     *
+     * @param player player
+     * @return shard the player is ticked by
+     */
+    public synchronized Shard add(Player player) {
+        Shard target = this.shards[0];
+        for (Shard shard : this.shards) {
+            if (shard.players.length < target.players.length) {
+                target = shard;
+            }
+        }
+        target.add(player);
+        return target;
+    }
+
+    public synchronized void remove(Player player) {
+        for (Shard shard : this.shards) {
+            if (shard.remove(player)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start a tick on all shards. Shards which are still busy with a previous tick skip to the latest one.
+     *
+     * @param currentTick current tick
+     */
+    public void tick(long currentTick) {
+        this.currentTick = currentTick;
+        for (Shard shard : this.shards) {
+            LockSupport.unpark(shard);
+        }
+    }
+
+    public void shutdown() {
+        this.running = false;
+        for (Shard shard : this.shards) {
+            LockSupport.unpark(shard);
+        }
+    }
+
+    public Shard[] getShards() {
+        return shards;
+    }
+
+    public class Shard extends Thread {
+
+        private final int id;
+        private volatile Player[] players = new Player[0];
+        private long lastTick;
+
+        private volatile long tickCount;
+        private volatile long skippedTicks;
+        private volatile long lastTickNanos;
+        private volatile double averageTickNanos;
+
+        private Shard(int id) {
+            super("Player Ticker - #" + id);
+            this.id = id;
+            this.setDaemon(true);
+        }
+
+        private void add(Player player) {
+            Player[] players = Arrays.copyOf(this.players, this.players.length + 1);
+            players[players.length - 1] = player;
+            this.players = players;
+        }
+
+        private boolean remove(Player player) {
+            Player[] players = this.players;
+            for (int i = 0; i < players.length; i++) {
+                if (players[i] == player) {
+                    Player[] copy = new Player[players.length - 1];
+                    System.arraycopy(players, 0, copy, 0, i);
+                    System.arraycopy(players, i + 1, copy, i, players.length - i - 1);
+                    this.players = copy;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                long tick = currentTick;
+                if (tick == this.lastTick) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                if (this.lastTick != 0 && tick - this.lastTick > 1) {
+                    this.skippedTicks += tick - this.lastTick - 1;
+                }
+                this.lastTick = tick;
+
+                long start = System.nanoTime();
+                for (Player player : this.players) {
+                    if (player.closed) {
+                        continue;
+                    }
+                    try {
+                        player.onUpdate(tick);
+                    } catch (Throwable t) {
+                        server.getLogger().error("Exception while ticking player " + player.getName(), t);
+                    }
+                }
+                long time = System.nanoTime() - start;
+                this.lastTickNanos = time;
+                this.averageTickNanos = this.averageTickNanos * 0.95 + time * 0.05;
+                this.tickCount++;
+            }
+        }
+
+        public int getShardId() {
+            return id;
+        }
+
+        public int getPlayerCount() {
+            return players.length;
+        }
+
+        public long getTickCount() {
+            return tickCount;
+        }
+
+        public long getSkippedTicks() {
+            return skippedTicks;
+        }
+
+        public long getLastTickNanos() {
+            return lastTickNanos;
+        }
+
+        public double getAverageTickNanos() {
+            return averageTickNanos;
+        }
+    }
+}
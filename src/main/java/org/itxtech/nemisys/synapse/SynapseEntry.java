@@ -230,6 +230,7 @@ public class SynapseEntry {
                     Constructor<? extends SynapsePlayer> constructor = clazz.getConstructor(SourceInterface.class, SynapseEntry.class, long.class, String.class, int.class);
                     SynapsePlayer player = constructor.newInstance(this.synLibInterface, this, ev.getClientId(), ev.getAddress(), ev.getPort());
                     player.networkSettingsUpdated = playerLoginPacket.raknetProtocol >= 11;
+                    player.inboundCompression = player.networkSettingsUpdated;
                     player.raknetProtocol = playerLoginPacket.raknetProtocol;
                     player.setUniqueId(playerLoginPacket.uuid);
                     this.players.put(playerLoginPacket.uuid, player);
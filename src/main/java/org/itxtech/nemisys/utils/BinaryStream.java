@@ -73,6 +73,15 @@ public class BinaryStream {
         return count;
     }
 
+    /**
+     * Get the backing array without copying it. Only the first {@link #getCount()} bytes are valid.
+     *
+     * @return backing array
+     */
+    public byte[] getBufferUnsafe() {
+        return buffer;
+    }
+
     public byte[] get() {
         return this.get(this.count - this.offset);
     }
@@ -94,6 +103,13 @@ public class BinaryStream {
         this.count += bytes.length;
     }
 
+    public void put(byte[] bytes, int offset, int length) {
+        this.ensureCapacity(this.count + length);
+
+        System.arraycopy(bytes, offset, this.buffer, this.count, length);
+        this.count += length;
+    }
+
     public long getLong() {
         return Binary.readLong(this.get(8));
     }
@@ -0,0 +1,66 @@
+package org.itxtech.nemisys.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with power of two millisecond buckets. Bucket 0 counts durations below 1 ms, bucket n
+ * counts durations from 2^(n-1) ms up to 2^n ms and the last bucket counts everything above.
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 16;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = millis <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+        this.buckets.incrementAndGet(bucket);
+    }
+
+    public long getCount(int bucket) {
+        return this.buckets.get(bucket);
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.buckets.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Add the counts of another histogram to this one
+     *
+     * @param other histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.addAndGet(i, other.buckets.get(i));
+        }
+    }
+
+    /**
+     * Get the upper bound of the bucket the given percentile falls in
+     *
+     * @param percentile percentile between 0 and 1
+     * @return upper bound in milliseconds
+     */
+    public long getPercentile(double percentile) {
+        long total = this.getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
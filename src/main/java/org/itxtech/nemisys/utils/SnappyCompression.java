@@ -1,5 +1,6 @@
 package org.itxtech.nemisys.utils;
 
+import io.netty.buffer.ByteBuf;
 import org.xerial.snappy.Snappy;
 
 import java.io.IOException;
@@ -10,6 +11,20 @@ public class SnappyCompression {
         return Snappy.compress(data);
     }
 
+    /**
+     * Compress data directly into a heap buffer
+     *
+     * @param data data to compress
+     * @param offset offset of the data
+     * @param length length of the data
+     * @param out heap buffer the compressed data is written to
+     */
+    public static void rawCompress(byte[] data, int offset, int length, ByteBuf out) throws IOException {
+        out.ensureWritable(Snappy.maxCompressedLength(length));
+        int written = Snappy.compress(data, offset, length, out.array(), out.arrayOffset() + out.writerIndex());
+        out.writerIndex(out.writerIndex() + written);
+    }
+
     public static byte[] rawDecompress(byte[] data, int maxSize) throws IOException {
         int size = Snappy.uncompressedLength(data);
         if (size > maxSize && maxSize > 0) {
@@ -1,5 +1,6 @@
 package org.itxtech.nemisys.utils;
 
+import io.netty.buffer.ByteBuf;
 import org.itxtech.nemisys.Server;
 
 import java.io.IOException;
@@ -51,6 +52,36 @@ public class Zlib {
         return bos.toByteArray();
     }
 
+    /**
+     * Compress data directly into a heap buffer
+     *
+     * @param data data to compress
+     * @param offset offset of the data
+     * @param length length of the data
+     * @param level compression level
+     * @param out heap buffer the compressed data is written to
+     */
+    public void deflate(byte[] data, int offset, int length, int level, ByteBuf out) {
+        deflate(DEFLATER.get(), data, offset, length, level, out);
+    }
+
+    public void deflateRaw(byte[] data, int offset, int length, int level, ByteBuf out) {
+        deflate(DEFLATER_RAW.get(), data, offset, length, level, out);
+    }
+
+    private static void deflate(Deflater deflater, byte[] data, int offset, int length, int level, ByteBuf out) {
+        deflater.reset();
+        deflater.setLevel(length < Server.compressionThreshold ? 0 : level);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.ensureWritable(Math.max(64, length >> 4));
+            int i = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+            out.writerIndex(out.writerIndex() + i);
+        }
+        //Deflater::end is called the time when the process exits.
+    }
+
     public byte[] inflate(byte[] data, int maxSize) throws IOException {
         Inflater inflater = INFLATER.get();
         inflater.reset();